@@ -0,0 +1,387 @@
+/**
+ *  This class implements a compressed set of internal document ids
+ *  for the unranked Boolean retrieval model, where every matching
+ *  document has a score of 1.0 and only set membership matters.
+ *
+ *  The layout follows Roaring bitmaps.  Docids are partitioned by
+ *  their high 16 bits.  Each partition is stored in a container that
+ *  is either a sorted array of the low 16 bits (sparse partitions) or
+ *  a 65536-bit bitmap (dense partitions), so #AND and #OR become
+ *  merges of short arrays or word-parallel operations on longs.
+ */
+
+import java.util.*;
+
+public class DocBitmap {
+
+  //  A partition holding more than this many docids is stored as a
+  //  bitmap.  At 4096 entries both representations use 8KB.
+
+  private static final int ARRAY_MAX = 4096;
+  private static final int BITMAP_WORDS = 1 << 10;
+
+  //  A container for the docids that share one high 16-bit key.
+  //  Exactly one of values and words is non-null.
+
+  private static class Container {
+    private char[] values;	// Sorted low bits (array container)
+    private long[] words;	// 65536 bits (bitmap container)
+    private int cardinality;
+
+    private Container(char[] values, int cardinality) {
+      this.values = values;
+      this.cardinality = cardinality;
+    }
+
+    private Container(long[] words, int cardinality) {
+      this.words = words;
+      this.cardinality = cardinality;
+    }
+
+    private boolean contains(char low) {
+      if (this.words != null)
+        return (this.words[low >>> 6] & (1L << low)) != 0;
+      return Arrays.binarySearch(this.values, 0, this.cardinality, low) >= 0;
+    }
+  }
+
+  private char[] keys = new char[4];
+  private Container[] containers = new Container[4];
+  private int size = 0;		// The number of containers in use
+
+  /**
+   *  Constructor.  An empty set.
+   */
+  public DocBitmap() {
+  }
+
+  /**
+   *  Add a document to the set.  Documents must be added in
+   *  increasing docid order, which is the order of inverted lists and
+   *  score lists; otherwise this method fails.
+   *  @param docid An internal document id.
+   *  @return true if the docid was added, otherwise false.
+   */
+  public boolean add(int docid) {
+    char key = (char) (docid >>> 16);
+    char low = (char) docid;
+
+    if (this.size == 0 || this.keys[this.size - 1] != key) {
+      if (this.size > 0 && this.keys[this.size - 1] > key)
+        return false;
+      appendContainer(key, new Container(new char[4], 0));
+    }
+
+    Container c = this.containers[this.size - 1];
+
+    if (c.words != null) {
+      long bit = 1L << low;
+      if ((c.words[low >>> 6] & bit) != 0)
+        return false;
+      c.words[low >>> 6] |= bit;
+      c.cardinality++;
+      return true;
+    }
+
+    if (c.cardinality > 0 && c.values[c.cardinality - 1] >= low)
+      return false;
+
+    if (c.cardinality == ARRAY_MAX) {
+      this.containers[this.size - 1] = toBitmap(c);
+      return add(docid);
+    }
+
+    if (c.cardinality == c.values.length)
+      c.values = Arrays.copyOf(c.values, Math.min(ARRAY_MAX, c.cardinality * 2));
+    c.values[c.cardinality++] = low;
+    return true;
+  }
+
+  /**
+   *  Test whether a document is in the set.
+   *  @param docid An internal document id.
+   *  @return true if the set contains docid.
+   */
+  public boolean contains(int docid) {
+    int i = findKey((char) (docid >>> 16));
+    return (i >= 0) && this.containers[i].contains((char) docid);
+  }
+
+  /**
+   *  The number of documents in the set.  This does not examine the
+   *  individual docids.
+   *  @return The cardinality of the set.
+   */
+  public int cardinality() {
+    int n = 0;
+    for (int i = 0; i < this.size; i++)
+      n += this.containers[i].cardinality;
+    return n;
+  }
+
+  /**
+   *  Intersect this set with another set.  Neither set is modified.
+   *  @param other The other set.
+   *  @return A new set with the documents that are in both sets.
+   */
+  public DocBitmap and(DocBitmap other) {
+    DocBitmap result = new DocBitmap();
+    int i = 0, j = 0;
+
+    while (i < this.size && j < other.size) {
+      if (this.keys[i] < other.keys[j]) {
+        i++;
+      } else if (this.keys[i] > other.keys[j]) {
+        j++;
+      } else {
+        Container c = and(this.containers[i], other.containers[j]);
+        if (c.cardinality > 0)
+          result.appendContainer(this.keys[i], c);
+        i++;
+        j++;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   *  Union this set with another set.  Neither set is modified.
+   *  @param other The other set.
+   *  @return A new set with the documents that are in either set.
+   */
+  public DocBitmap or(DocBitmap other) {
+    DocBitmap result = new DocBitmap();
+    int i = 0, j = 0;
+
+    while (i < this.size || j < other.size) {
+      if (j >= other.size || (i < this.size && this.keys[i] < other.keys[j])) {
+        result.appendContainer(this.keys[i], copy(this.containers[i]));
+        i++;
+      } else if (i >= this.size || this.keys[i] > other.keys[j]) {
+        result.appendContainer(other.keys[j], copy(other.containers[j]));
+        j++;
+      } else {
+        result.appendContainer(this.keys[i],
+                               or(this.containers[i], other.containers[j]));
+        i++;
+        j++;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   *  Return the documents in the set, in increasing docid order.
+   *  @return An array of internal document ids.
+   */
+  public int[] toArray() {
+    int[] docids = new int[cardinality()];
+    int n = 0;
+
+    for (int i = 0; i < this.size; i++) {
+      int high = this.keys[i] << 16;
+      Container c = this.containers[i];
+
+      if (c.words != null) {
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+          long word = c.words[w];
+          while (word != 0) {
+            docids[n++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+            word &= word - 1;
+          }
+        }
+      } else {
+        for (int k = 0; k < c.cardinality; k++)
+          docids[n++] = high | c.values[k];
+      }
+    }
+
+    return docids;
+  }
+
+  /**
+   *  Convert the set to a score list in which every document has the
+   *  unranked Boolean score of 1.0.
+   *  @return A score list in increasing docid order.
+   */
+  public ScoreList toScoreList() {
+    ScoreList scores = new ScoreList();
+
+    for (int docid : toArray())
+      scores.add(docid, 1.0);
+
+    return scores;
+  }
+
+  /**
+   *  Build a set from a score list.  Score list entries must be in
+   *  increasing docid order.
+   *  @param scores A score list.
+   *  @return A set of the documents in the score list.
+   */
+  public static DocBitmap fromScoreList(ScoreList scores) {
+    DocBitmap docs = new DocBitmap();
+
+    for (int i = 0; i < scores.scores.size(); i++)
+      docs.add(scores.getDocid(i));
+
+    return docs;
+  }
+
+  /**
+   *  Build a set from an inverted list.
+   *  @param invList An inverted list.
+   *  @return A set of the documents in the inverted list.
+   */
+  public static DocBitmap fromInvList(InvList invList) {
+    DocBitmap docs = new DocBitmap();
+
+    for (int i = 0; i < invList.df; i++)
+      docs.add(invList.getDocid(i));
+
+    return docs;
+  }
+
+  private void appendContainer(char key, Container c) {
+    if (this.size == this.keys.length) {
+      this.keys = Arrays.copyOf(this.keys, this.size * 2);
+      this.containers = Arrays.copyOf(this.containers, this.size * 2);
+    }
+    this.keys[this.size] = key;
+    this.containers[this.size] = c;
+    this.size++;
+  }
+
+  private int findKey(char key) {
+    int lo = 0, hi = this.size - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (this.keys[mid] < key)
+        lo = mid + 1;
+      else if (this.keys[mid] > key)
+        hi = mid - 1;
+      else
+        return mid;
+    }
+
+    return -1;
+  }
+
+  private static Container and(Container a, Container b) {
+
+    if (a.words != null && b.words != null) {
+      long[] words = new long[BITMAP_WORDS];
+      int n = 0;
+      for (int w = 0; w < BITMAP_WORDS; w++) {
+        words[w] = a.words[w] & b.words[w];
+        n += Long.bitCount(words[w]);
+      }
+      Container c = new Container(words, n);
+      return (n > ARRAY_MAX) ? c : toArray(c);
+    }
+
+    if (a.words != null) {
+      Container t = a;
+      a = b;
+      b = t;
+    }
+
+    //  a is an array container.  Keep the values that are also in b.
+
+    char[] values = new char[Math.min(a.cardinality, b.cardinality)];
+    int n = 0;
+
+    if (b.words != null) {
+      for (int k = 0; k < a.cardinality; k++)
+        if (b.contains(a.values[k]))
+          values[n++] = a.values[k];
+    } else {
+      int i = 0, j = 0;
+      while (i < a.cardinality && j < b.cardinality) {
+        if (a.values[i] < b.values[j])
+          i++;
+        else if (a.values[i] > b.values[j])
+          j++;
+        else {
+          values[n++] = a.values[i];
+          i++;
+          j++;
+        }
+      }
+    }
+
+    return new Container(values, n);
+  }
+
+  private static Container or(Container a, Container b) {
+
+    if (a.words == null && b.words == null &&
+        a.cardinality + b.cardinality <= ARRAY_MAX) {
+      char[] values = new char[a.cardinality + b.cardinality];
+      int i = 0, j = 0, n = 0;
+      while (i < a.cardinality || j < b.cardinality) {
+        if (j >= b.cardinality ||
+            (i < a.cardinality && a.values[i] < b.values[j]))
+          values[n++] = a.values[i++];
+        else if (i >= a.cardinality || a.values[i] > b.values[j])
+          values[n++] = b.values[j++];
+        else {
+          values[n++] = a.values[i++];
+          j++;
+        }
+      }
+      return new Container(values, n);
+    }
+
+    Container c = (a.words != null) ? copy(a) : toBitmap(a);
+
+    if (b.words != null) {
+      int n = 0;
+      for (int w = 0; w < BITMAP_WORDS; w++) {
+        c.words[w] |= b.words[w];
+        n += Long.bitCount(c.words[w]);
+      }
+      c.cardinality = n;
+    } else {
+      for (int k = 0; k < b.cardinality; k++) {
+        char low = b.values[k];
+        long bit = 1L << low;
+        if ((c.words[low >>> 6] & bit) == 0) {
+          c.words[low >>> 6] |= bit;
+          c.cardinality++;
+        }
+      }
+    }
+
+    return (c.cardinality > ARRAY_MAX) ? c : toArray(c);
+  }
+
+  private static Container copy(Container c) {
+    if (c.words != null)
+      return new Container(c.words.clone(), c.cardinality);
+    return new Container(Arrays.copyOf(c.values, c.cardinality), c.cardinality);
+  }
+
+  private static Container toBitmap(Container c) {
+    long[] words = new long[BITMAP_WORDS];
+    for (int k = 0; k < c.cardinality; k++)
+      words[c.values[k] >>> 6] |= 1L << c.values[k];
+    return new Container(words, c.cardinality);
+  }
+
+  private static Container toArray(Container c) {
+    char[] values = new char[c.cardinality];
+    int n = 0;
+    for (int w = 0; w < BITMAP_WORDS; w++) {
+      long word = c.words[w];
+      while (word != 0) {
+        values[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+        word &= word - 1;
+      }
+    }
+    return new Container(values, n);
+  }
+}
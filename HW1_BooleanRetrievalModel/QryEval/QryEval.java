@@ -422,6 +422,12 @@ public class QryEval {
 	String queryID = query[0];
 	String queryName = query[1];
     System.out.println(queryName + ":  ");
+    if (result.docBitmap != null) {
+    	// Unranked Boolean results are bitmaps; every matching
+    	// document has a score of 1.0.
+    	System.out.println("\tMatched documents: " + result.docBitmap.cardinality());
+    	result.docScores = result.docBitmap.toScoreList();
+    }
     if (result.docScores.scores.size() < 1) {
     	System.out.println("\tNo results.");
     } else {
@@ -50,7 +50,8 @@ public class QryopSlAnd extends QryopSl {
 
   /**
    *  Evaluates the query operator for boolean retrieval models,
-   *  including any child operators and returns the result.
+   *  including any child operators and returns the result.  The
+   *  result is a bitmap of the documents that match every argument.
    *  @param r A retrieval model that controls how the operator behaves.
    *  @return The result of evaluating the query.
    *  @throws IOException
@@ -58,64 +59,28 @@ public class QryopSlAnd extends QryopSl {
   public QryResult evaluateBoolean (RetrievalModel r) throws IOException {
 
 	  //  Initialization
-	  allocArgPtrs (r);
 	  QryResult result = new QryResult ();
+	  DocBitmap[] argDocs = new DocBitmap[this.args.size()];
 	
-	  //  Sort the arguments so that the shortest lists are first.  This
-	  //  improves the efficiency of exact-match AND without changing
-	  //  the result.
-	
-	  for (int i=0; i<(this.argPtrs.size()-1); i++) {
-		  for (int j=i+1; j<this.argPtrs.size(); j++) {
-			  if (this.argPtrs.get(i).scoreList.scores.size() >
-				  this.argPtrs.get(j).scoreList.scores.size()) {
-				  ScoreList tmpScoreList = this.argPtrs.get(i).scoreList;
-				  this.argPtrs.get(i).scoreList = this.argPtrs.get(j).scoreList;
-				  this.argPtrs.get(j).scoreList = tmpScoreList;
-			  }
-		  }
+	  for (int i=0; i<this.args.size(); i++) {
+		  argDocs[i] = evaluateArgBitmap (i, r);
 	  }
 	
-	  //  Exact-match AND requires that ALL scoreLists contain a
-	  //  document id.  Use the first (shortest) list to control the
-	  //  search for matches.
-	
-	  //  Named loops are a little ugly.  However, they make it easy
-	  //  to terminate an outer loop from within an inner loop.
-	  //  Otherwise it is necessary to use flags, which is also ugly.
-	
-	  ArgPtr ptr0 = this.argPtrs.get(0);
-	
-	  EVALUATEDOCUMENTS:
-      for ( ; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc ++) {
-	
-    	  int ptr0Docid = ptr0.scoreList.getDocid (ptr0.nextDoc);
-    	  double docScore = 1.0;
-	
-    	  //  Do the other query arguments have the ptr0Docid?
-	
-    	  for (int j=1; j<this.argPtrs.size(); j++) {
+	  //  Intersect the smallest sets first.  This keeps the
+	  //  intermediate results small without changing the result.
 	
-    		  ArgPtr ptrj = this.argPtrs.get(j);
-	
-    		  while (true) {
-    			  if (ptrj.nextDoc >= ptrj.scoreList.scores.size())
-    				  break EVALUATEDOCUMENTS;		// No more docs can match
-    			  else if (ptrj.scoreList.getDocid (ptrj.nextDoc) > ptr0Docid)
-    				  continue EVALUATEDOCUMENTS;	// The ptr0docid can't match.
-    			  else if (ptrj.scoreList.getDocid (ptrj.nextDoc) < ptr0Docid)
-    				  ptrj.nextDoc ++;			// Not yet at the right doc.
-    			  else
-    				  break;				// ptrj matches ptr0Docid
-    		  }
-    	  }
-	
-    	  //  The ptr0Docid matched all query arguments, so save it.
+	  Arrays.sort (argDocs, new Comparator<DocBitmap>() {
+		  public int compare (DocBitmap a, DocBitmap b) {
+			  return Integer.compare (a.cardinality(), b.cardinality());
+		  }
+	  });
 	
-    	  result.docScores.add (ptr0Docid, docScore);
+	  DocBitmap docs = argDocs[0];
+	  for (int i=1; i<argDocs.length && docs.cardinality() > 0; i++) {
+		  docs = docs.and (argDocs[i]);
 	  }
 	
-	  freeArgPtrs ();
+	  result.docBitmap = docs;
 	
 	  return result;
   }
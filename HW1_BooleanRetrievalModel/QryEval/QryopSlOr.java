@@ -49,7 +49,8 @@ public class QryopSlOr extends QryopSl {
 
   /**
    *  Evaluates the query operator for boolean retrieval models,
-   *  including any child operators and returns the result.
+   *  including any child operators and returns the result.  The
+   *  result is a bitmap of the documents that match any argument.
    *  @param r A retrieval model that controls how the operator behaves.
    *  @return The result of evaluating the query.
    *  @throws IOException
@@ -57,25 +58,14 @@ public class QryopSlOr extends QryopSl {
   public QryResult evaluateBoolean (RetrievalModel r) throws IOException {
 
 	  //  Initialization
-	  allocArgPtrs (r);
 	  QryResult result = new QryResult ();
+	  DocBitmap docs = new DocBitmap ();
 	
-	  Set<Integer> idSet = new HashSet<Integer>();
-	  
-	  for (int i = 0; i < this.argPtrs.size(); i++) {
-		  ArgPtr ptr = this.argPtrs.get(i);
-		  for ( ; ptr.nextDoc < ptr.scoreList.scores.size(); ptr.nextDoc ++) {
-			  int ptrDocid = ptr.scoreList.getDocid(ptr.nextDoc);
-			  double docScore = 1.0;
-			  if (!idSet.contains(ptrDocid)) {
-				  result.docScores.add (ptrDocid, docScore);
-				  idSet.add(ptrDocid);
-			  }
-		  }
+	  for (int i = 0; i < this.args.size(); i++) {
+		  docs = docs.or (evaluateArgBitmap (i, r));
 	  }
 	
-	  idSet.clear();
-	  freeArgPtrs ();
+	  result.docBitmap = docs;
 	
 	  return result;
   }
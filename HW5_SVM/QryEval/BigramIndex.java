@@ -0,0 +1,148 @@
+/**
+ *  This class reads the auxiliary bigram index written by
+ *  BigramIndexBuilder.  It holds the precomputed #NEAR/1 inverted
+ *  lists of selected adjacent word pairs, so QryopIlNear can read the
+ *  list of a frequent pair instead of intersecting the positional
+ *  lists of both words.
+ *
+ *  A bigram list is exactly the list that QryopIlNear produces: the
+ *  documents where the second term occurs one position after the
+ *  first, with the positions of the first term.
+ *
+ *  File layout (DataOutputStream, big-endian):
+ *    header:     MAGIC, VERSION, maxDoc of the index it was built from
+ *    postings:   one block per (field, pair):
+ *                VInt df, then per document VInt docid gap, VInt tf,
+ *                and tf VInt position gaps
+ *    dictionary: entry count, then (field, term1, term2, offset, length)
+ *    trailer:    the offset of the dictionary
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class BigramIndex {
+
+  public static final int MAGIC = 0x42494758;	// "BIGX"
+  public static final int VERSION = 1;
+
+  private RandomAccessFile file;
+  private Map<String, long[]> dictionary = new HashMap<String, long[]>();
+  private byte[] buffer = new byte[1 << 16];
+
+  /**
+   *  Open a bigram index and read its dictionary.
+   *  @param path The path of the bigram index file.
+   *  @throws IOException
+   */
+  public BigramIndex(String path) throws IOException {
+    this.file = new RandomAccessFile(path, "r");
+
+    if (this.file.readInt() != MAGIC || this.file.readInt() != VERSION)
+      throw new IOException("Not a bigram index: " + path);
+    if (this.file.readInt() != QryEval.READER.maxDoc())
+      throw new IOException("Bigram index was built for another index: " + path);
+
+    this.file.seek(this.file.length() - 8);
+    this.file.seek(this.file.readLong());
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+	new FileInputStream(this.file.getFD())));
+    int n = in.readInt();
+
+    for (int i = 0; i < n; i++) {
+      String key = key(in.readUTF(), in.readUTF(), in.readUTF());
+      long offset = in.readLong();
+      long length = in.readInt();
+      this.dictionary.put(key, new long[] { offset, length });
+    }
+  }
+
+  /**
+   *  The number of word pairs in the index.
+   *  @return The number of pairs.
+   */
+  public int size() {
+    return this.dictionary.size();
+  }
+
+  /**
+   *  Get the #NEAR/1 inverted list of two query arguments, if both are
+   *  terms in the same field and the pair is in the index.
+   *  @param first The first argument of the #NEAR/1 operator.
+   *  @param second The second argument.
+   *  @return The inverted list, or null if the index cannot answer.
+   *  @throws IOException
+   */
+  public InvList getInvList(Qryop first, Qryop second) throws IOException {
+
+    if (! (first instanceof QryopIlTerm) || ! (second instanceof QryopIlTerm))
+      return null;
+
+    QryopIlTerm t1 = (QryopIlTerm) first;
+    QryopIlTerm t2 = (QryopIlTerm) second;
+
+    if (! t1.getField().equals(t2.getField()))
+      return null;
+
+    long[] entry = this.dictionary.get(key(t1.getField(), t1.getTerm(),
+					   t2.getTerm()));
+    if (entry == null)
+      return null;
+
+    int length = (int) entry[1];
+    if (this.buffer.length < length)
+      this.buffer = new byte[length];
+    this.file.seek(entry[0]);
+    this.file.readFully(this.buffer, 0, length);
+
+    InvList invList = new InvList(t1.getField());
+    int[] pos = { 0 };
+    int[] positions = new int[16];
+    int df = ImpactIndex.readVInt(this.buffer, pos);
+    int docid = 0;
+
+    for (int i = 0; i < df; i++) {
+      docid += ImpactIndex.readVInt(this.buffer, pos);
+      int tf = ImpactIndex.readVInt(this.buffer, pos);
+      if (positions.length < tf)
+	positions = new int[tf];
+      int position = 0;
+      for (int j = 0; j < tf; j++) {
+	position += ImpactIndex.readVInt(this.buffer, pos);
+	positions[j] = position;
+      }
+      invList.appendPosting(docid, positions, tf);
+    }
+
+    return invList;
+  }
+
+  /**
+   *  Encode an inverted list as a bigram index block.
+   *  @param invList The #NEAR/1 inverted list of a pair.
+   *  @param out The stream to write the block to.
+   */
+  public static void writeInvList(InvList invList, ByteArrayOutputStream out) {
+    ImpactIndex.writeVInt(out, invList.df);
+    int prevDocid = 0;
+
+    for (int i = 0; i < invList.df; i++) {
+      int docid = invList.getDocid(i);
+      int[] positions = invList.getPositions(i);
+      int tf = invList.getTf(i);
+      ImpactIndex.writeVInt(out, docid - prevDocid);
+      ImpactIndex.writeVInt(out, tf);
+      int prev = 0;
+      for (int j = 0; j < tf; j++) {
+	ImpactIndex.writeVInt(out, positions[j] - prev);
+	prev = positions[j];
+      }
+      prevDocid = docid;
+    }
+  }
+
+  private static String key(String field, String term1, String term2) {
+    return field + ":" + term1 + " " + term2;
+  }
+}
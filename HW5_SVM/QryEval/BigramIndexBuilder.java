@@ -0,0 +1,229 @@
+/**
+ *  This class builds the auxiliary bigram index read by BigramIndex.
+ *  It is run once per index, offline:
+ *
+ *    java BigramIndexBuilder parameterFile
+ *
+ *  The parameter file uses the QryEval format.  It needs indexPath and
+ *  bigramIndexPath.  The word pairs are chosen in one of two ways:
+ *
+ *    - If bigramQueryLog names a query file (QryEval format), the
+ *      pairs are the two-term #NEAR/1 operators in its queries.
+ *    - Otherwise they are the adjacent word pairs that occur most often
+ *      in the bigramFields (default body) of the collection, counted
+ *      from term vectors.
+ *
+ *  In both cases the bigramMaxPairs (default 1000) most frequent pairs
+ *  that occur at least bigramMinCount (default 1) times are indexed.
+ *  Their lists are computed by QryopIlNear itself, so they are exactly
+ *  the lists that query evaluation would compute.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.*;
+
+public class BigramIndexBuilder {
+
+  /**
+   *  @param args The name of a parameter file.
+   *  @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      System.err.println("Usage:  java BigramIndexBuilder paramFile");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameters(args[0]);
+
+    if (!params.containsKey("indexPath") ||
+	!params.containsKey("bigramIndexPath"))
+      QryEval.fatalError("Error: indexPath and bigramIndexPath are required.");
+
+    QryEval.READER = DirectoryReader.open(FSDirectory.open(new File(params
+	.get("indexPath"))));
+    QryEval.segments = new IndexSegments(QryEval.READER);
+    QryEval.docLenStore = new DocLengthStore(QryEval.READER);
+
+    int maxPairs = params.containsKey("bigramMaxPairs") ?
+      Integer.parseInt(params.get("bigramMaxPairs")) : 1000;
+    int minCount = params.containsKey("bigramMinCount") ?
+      Integer.parseInt(params.get("bigramMinCount")) : 1;
+
+    //  Count the candidate pairs.  Keys are "field term1 term2".
+
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+
+    if (params.containsKey("bigramQueryLog")) {
+      countQueryLogPairs(params.get("bigramQueryLog"), counts);
+    } else {
+      for (String field : (params.containsKey("bigramFields") ?
+			   params.get("bigramFields") : "body").split(","))
+	countCollectionPairs(field.trim(), counts);
+    }
+
+    List<Map.Entry<String, Integer>> pairs =
+      new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+    Collections.sort(pairs, new Comparator<Map.Entry<String, Integer>>() {
+      public int compare(Map.Entry<String, Integer> a,
+			 Map.Entry<String, Integer> b) {
+	if (! a.getValue().equals(b.getValue()))
+	  return b.getValue() - a.getValue();
+	return a.getKey().compareTo(b.getKey());
+      }
+    });
+
+    write(params.get("bigramIndexPath"), pairs, maxPairs, minCount);
+    QryEval.READER.close();
+  }
+
+  /**
+   *  Count the two-term #NEAR/1 operators in a query log.
+   */
+  private static void countQueryLogPairs(String path, Map<String, Integer> counts)
+    throws IOException {
+
+    BufferedReader br = new BufferedReader(new FileReader(path));
+    RetrievalModel model = new RetrievalModelUnrankedBoolean();
+    String line;
+
+    while ((line = br.readLine()) != null) {
+      int colon = line.indexOf(':');
+      if (colon < 0)
+	continue;
+      countNearPairs(QryEval.parseQuery(line.substring(colon + 1), model),
+		     counts);
+    }
+
+    br.close();
+  }
+
+  private static void countNearPairs(Qryop q, Map<String, Integer> counts) {
+
+    if (q instanceof QryopIlNear && ((QryopIlNear) q).getDistance() == 1 &&
+	q.args.size() == 2 && q.args.get(0) instanceof QryopIlTerm &&
+	q.args.get(1) instanceof QryopIlTerm) {
+      QryopIlTerm t1 = (QryopIlTerm) q.args.get(0);
+      QryopIlTerm t2 = (QryopIlTerm) q.args.get(1);
+      if (t1.getField().equals(t2.getField()))
+	increment(counts, t1.getField() + " " + t1.getTerm() + " " + t2.getTerm());
+    }
+
+    for (Qryop arg : q.args)
+      countNearPairs(arg, counts);
+  }
+
+  /**
+   *  Count the adjacent word pairs of a field, using the term vectors
+   *  to recover the order of the words in each document.
+   */
+  private static void countCollectionPairs(String field,
+					   Map<String, Integer> counts)
+    throws IOException {
+
+    IndexReader reader = QryEval.READER;
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+    String[] words = new String[1024];
+
+    for (int docid = 0; docid < reader.maxDoc(); docid++) {
+      if (liveDocs != null && !liveDocs.get(docid))
+	continue;
+
+      Terms vector = reader.getTermVector(docid, field);
+      if (vector == null)
+	continue;
+      if (! vector.hasPositions())
+	QryEval.fatalError("Error: term vectors of " + field +
+			   " have no positions.");
+
+      int length = 0;
+      TermsEnum termsEnum = vector.iterator(null);
+      DocsAndPositionsEnum positions = null;
+      BytesRef term;
+
+      while ((term = termsEnum.next()) != null) {
+	String word = term.utf8ToString();
+	positions = termsEnum.docsAndPositions(null, positions);
+	positions.nextDoc();
+	for (int i = 0; i < positions.freq(); i++) {
+	  int p = positions.nextPosition();
+	  if (p >= words.length)
+	    words = Arrays.copyOf(words, Math.max(p + 1, words.length * 2));
+	  words[p] = word;
+	  length = Math.max(length, p + 1);
+	}
+      }
+
+      for (int p = 0; p + 1 < length; p++)
+	if (words[p] != null && words[p + 1] != null)
+	  increment(counts, field + " " + words[p] + " " + words[p + 1]);
+
+      Arrays.fill(words, 0, length, null);
+    }
+  }
+
+  private static void increment(Map<String, Integer> counts, String key) {
+    Integer n = counts.get(key);
+    counts.put(key, (n == null) ? 1 : n + 1);
+  }
+
+  /**
+   *  Compute and write the lists of the most frequent pairs.
+   */
+  private static void write(String path, List<Map.Entry<String, Integer>> pairs,
+			    int maxPairs, int minCount) throws IOException {
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+	new FileOutputStream(path)));
+    out.writeInt(BigramIndex.MAGIC);
+    out.writeInt(BigramIndex.VERSION);
+    out.writeInt(QryEval.READER.maxDoc());
+
+    ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+    DataOutputStream dict = new DataOutputStream(dictionary);
+    ByteArrayOutputStream block = new ByteArrayOutputStream();
+    RetrievalModel model = new RetrievalModelUnrankedBoolean();
+    long offset = out.size();
+    long postings = 0;
+    int entries = 0;
+
+    for (Map.Entry<String, Integer> pair : pairs) {
+      if (entries >= maxPairs || pair.getValue() < minCount)
+	break;
+
+      String[] parts = pair.getKey().split(" ");
+      QryopIlNear near = new QryopIlNear(1, new QryopIlTerm(parts[1], parts[0]),
+					 new QryopIlTerm(parts[2], parts[0]));
+      InvList invList = near.evaluate(model).invertedList;
+      if (invList.df == 0)
+	continue;
+
+      block.reset();
+      BigramIndex.writeInvList(invList, block);
+      block.writeTo(out);
+
+      dict.writeUTF(parts[0]);
+      dict.writeUTF(parts[1]);
+      dict.writeUTF(parts[2]);
+      dict.writeLong(offset);
+      dict.writeInt(block.size());
+      offset += block.size();
+      postings += invList.df;
+      entries++;
+    }
+
+    out.writeInt(entries);
+    dictionary.writeTo(out);
+    out.writeLong(offset);
+    out.close();
+
+    System.out.println("Bigram index: " + entries + " pairs, " + postings +
+		       " postings, " + offset + " bytes of postings");
+  }
+}
@@ -0,0 +1,195 @@
+/**
+ *  This class holds the query-independent attributes of every document
+ *  that LeToR features use, indexed by internal docid, so feature
+ *  extraction never loads a stored document:
+ *    spam score:     the "score" field, or NaN if it is missing
+ *    URL depth:      the number of '/' in the "rawUrl" field
+ *    URL length:     the length of the "rawUrl" field
+ *    Wikipedia flag: whether the "rawUrl" field contains wikipedia.org
+ *  The URL attributes of a document without a "rawUrl" field are -1.
+ *
+ *  The attributes are computed offline by DocAttributesBuilder, with
+ *  one scan of the stored fields, and memory-mapped by LeToR runs.
+ *
+ *  File layout (DataOutputStream, big-endian):
+ *    header:      MAGIC, VERSION, maxDoc of the index it was built from
+ *    spam scores: maxDoc doubles
+ *    URL depths:  maxDoc ints
+ *    URL lengths: maxDoc ints
+ *    Wikipedia:   maxDoc bytes
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+
+public class DocAttributes {
+
+  public static final int MAGIC = 0x44415452;	// "DATR"
+  public static final int VERSION = 1;
+
+  private static final Set<String> FIELDS =
+    new HashSet<String>(Arrays.asList("score", "rawUrl"));
+
+  private int maxDoc;
+  private DoubleBuffer spamScores;
+  private IntBuffer urlDepths;
+  private IntBuffer urlLengths;
+  private ByteBuffer wikipedia;
+
+  private DocAttributes() {
+  }
+
+  /**
+   *  Compute the attributes of every document from its stored fields.
+   *  This reads each stored document once, so it is meant for
+   *  DocAttributesBuilder, not for the query path.
+   *  @return The attributes.
+   *  @throws IOException
+   */
+  public static DocAttributes build() throws IOException {
+    IndexReader reader = QryEval.READER;
+    int maxDoc = reader.maxDoc();
+    double[] spamScores = new double[maxDoc];
+    int[] urlDepths = new int[maxDoc];
+    int[] urlLengths = new int[maxDoc];
+    byte[] wikipedia = new byte[maxDoc];
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      Document d = reader.document(docid, FIELDS);
+
+      String score = d.get("score");
+      spamScores[docid] = (score == null) ? Double.NaN :
+	Double.parseDouble(score);
+
+      String rawUrl = d.get("rawUrl");
+      if (rawUrl == null) {
+	urlDepths[docid] = urlLengths[docid] = wikipedia[docid] = -1;
+	continue;
+      }
+
+      rawUrl = rawUrl.trim();
+      int depth = 0;
+      for (int i = 0; i < rawUrl.length(); i++)
+	if (rawUrl.charAt(i) == '/')
+	  depth++;
+      urlDepths[docid] = depth;
+      urlLengths[docid] = rawUrl.length();
+      wikipedia[docid] = (byte) (rawUrl.contains("wikipedia.org") ? 1 : 0);
+    }
+
+    DocAttributes attributes = new DocAttributes();
+    attributes.maxDoc = maxDoc;
+    attributes.spamScores = DoubleBuffer.wrap(spamScores);
+    attributes.urlDepths = IntBuffer.wrap(urlDepths);
+    attributes.urlLengths = IntBuffer.wrap(urlLengths);
+    attributes.wikipedia = ByteBuffer.wrap(wikipedia);
+    return attributes;
+  }
+
+  /**
+   *  Map a file written by write.
+   *  @param path The attribute file.
+   *  @return The attributes.
+   *  @throws IOException
+   */
+  public static DocAttributes open(String path) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    MappedByteBuffer buffer = file.getChannel().map(
+      FileChannel.MapMode.READ_ONLY, 0, file.length());
+    file.close();
+
+    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+      throw new IOException("Not a document attribute file: " + path);
+    int maxDoc = buffer.getInt();
+    if (maxDoc != QryEval.READER.maxDoc())
+      throw new IOException("Document attributes were built for another " +
+			    "index: " + path);
+    if (buffer.remaining() < 17L * maxDoc)
+      throw new IOException("Truncated document attribute file: " + path);
+
+    DocAttributes attributes = new DocAttributes();
+    attributes.maxDoc = maxDoc;
+    attributes.spamScores = slice(buffer, 8 * maxDoc).asDoubleBuffer();
+    attributes.urlDepths = slice(buffer, 4 * maxDoc).asIntBuffer();
+    attributes.urlLengths = slice(buffer, 4 * maxDoc).asIntBuffer();
+    attributes.wikipedia = slice(buffer, maxDoc);
+    return attributes;
+  }
+
+  /**
+   *  The next length bytes of a buffer, as a buffer of their own.
+   */
+  private static ByteBuffer slice(ByteBuffer buffer, int length) {
+    ByteBuffer slice = buffer.slice();
+    slice.limit(length);
+    buffer.position(buffer.position() + length);
+    return slice;
+  }
+
+  /**
+   *  Write the attributes to a file that open maps.
+   *  @param path The output file.
+   *  @throws IOException
+   */
+  public void write(String path) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+      new FileOutputStream(path)));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(maxDoc);
+    for (int docid = 0; docid < maxDoc; docid++)
+      out.writeDouble(spamScore(docid));
+    for (int docid = 0; docid < maxDoc; docid++)
+      out.writeInt(urlDepth(docid));
+    for (int docid = 0; docid < maxDoc; docid++)
+      out.writeInt(urlLength(docid));
+    for (int docid = 0; docid < maxDoc; docid++)
+      out.writeByte(this.wikipedia.get(docid));
+    out.close();
+  }
+
+  /**
+   *  @return The number of documents, i.e., the maxDoc of the index.
+   */
+  public int size() {
+    return this.maxDoc;
+  }
+
+  /**
+   *  @param docid An internal document id.
+   *  @return The spam score, or NaN if the document has none.
+   */
+  public double spamScore(int docid) {
+    return this.spamScores.get(docid);
+  }
+
+  /**
+   *  @param docid An internal document id.
+   *  @return The number of '/' in the URL, or -1 if it has no URL.
+   */
+  public int urlDepth(int docid) {
+    return this.urlDepths.get(docid);
+  }
+
+  /**
+   *  @param docid An internal document id.
+   *  @return The length of the URL, or -1 if it has no URL.
+   */
+  public int urlLength(int docid) {
+    return this.urlLengths.get(docid);
+  }
+
+  /**
+   *  @param docid An internal document id.
+   *  @return 1 if the URL is a Wikipedia URL, 0 if not, or -1 if the
+   *  document has no URL.
+   */
+  public int wikipedia(int docid) {
+    return this.wikipedia.get(docid);
+  }
+}
@@ -0,0 +1,47 @@
+/**
+ *  This class precomputes the document attributes read by DocAttributes
+ *  (spam score, URL depth, URL length and Wikipedia flag).  It is run
+ *  once per index, offline:
+ *
+ *    java DocAttributesBuilder parameterFile
+ *
+ *  The parameter file uses the QryEval format.  It needs indexPath and
+ *  docAttributesPath.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.FSDirectory;
+
+public class DocAttributesBuilder {
+
+  /**
+   *  @param args The name of a parameter file.
+   *  @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      System.err.println("Usage:  java DocAttributesBuilder paramFile");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameters(args[0]);
+
+    if (!params.containsKey("indexPath") ||
+	!params.containsKey("docAttributesPath"))
+      QryEval.fatalError("Error: indexPath and docAttributesPath are required.");
+
+    QryEval.READER = DirectoryReader.open(FSDirectory.open(new File(params
+	.get("indexPath"))));
+
+    DocAttributes attributes = DocAttributes.build();
+    attributes.write(params.get("docAttributesPath"));
+
+    System.out.println("Document attributes: " + attributes.size() +
+		       " documents");
+    QryEval.READER.close();
+  }
+}
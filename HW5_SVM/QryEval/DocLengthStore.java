@@ -4,27 +4,48 @@
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
-import org.apache.lucene.index.MultiDocValues;
 import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.ReaderUtil;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * Lengths are read from the norms of each index segment directly, rather
+ * than through a merged view of the whole index.
  */
 public class DocLengthStore  {
 
   private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private int[] docStarts;
+  private  Map<String, NumericDocValues[]> values = new HashMap<String, NumericDocValues[]>();
+
+  //  The segment of the last lookup.  Callers usually ask for docids in
+  //  increasing order, so this avoids most segment searches.
+
+  private int lastLeaf = 0;
 
   /**
    * @param reader IndexReader object created in {@link QryEval}.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
     this.reader = reader;
+    List<AtomicReaderContext> leaves = reader.leaves();
+    this.docStarts = new int[leaves.size() + 1];
+    for (int i = 0; i < leaves.size(); i++) {
+      this.docStarts[i] = leaves.get(i).docBase;
+    }
+    this.docStarts[leaves.size()] = reader.maxDoc();
+
     for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+      NumericDocValues[] norms = new NumericDocValues[leaves.size()];
+      for (int i = 0; i < leaves.size(); i++) {
+        norms[i] = leaves.get(i).reader().getNormValues(field);
+      }
+      this.values.put(field, norms);
     }
   }
 
@@ -36,6 +57,13 @@ public class DocLengthStore  {
    * @param docid The internal docid in the lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    int leaf = this.lastLeaf;
+    if (docid < this.docStarts[leaf] || docid >= this.docStarts[leaf + 1]) {
+      leaf = ReaderUtil.subIndex(docid, this.docStarts);
+      this.lastLeaf = leaf;
+    }
+
+    NumericDocValues norms = values.get(fieldname)[leaf];
+    return (norms == null) ? 0 : norms.get(docid - this.docStarts[leaf]);
   }
 }
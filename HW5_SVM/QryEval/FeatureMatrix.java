@@ -0,0 +1,233 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * The normalized LeToR feature vectors of a set of queries, stored by
+ * column. Each row is a (query, document) pair; the rows of the q'th query
+ * are queryStart[q] to queryStart[q + 1] - 1, and queries are in qid order.
+ * Each feature has one double array over all of the rows, and a bit set of
+ * the rows where it is present. Absent features (disabled, or the document
+ * lacks the field) are 0, which is how svm_rank treats them.
+ *
+ * A matrix can be saved in a binary file and memory-mapped back, so that
+ * training and scoring do not parse text: the columns of a matrix read
+ * back are views of the mapped file, and only the row and query arrays,
+ * the bit sets and the external ids are loaded into the heap. A matrix can
+ * also be exported in the svm_rank text format when the external svm_rank
+ * tools are used.
+ *
+ * File layout (big-endian):
+ *   header:  MAGIC, VERSION, feature count, row count, query count
+ *   queries: qids, then query count + 1 row starts (ints)
+ *   rows:    labels, then internal docids (ints)
+ *   columns: per feature, one double per row
+ *   present: per feature, (rows + 63) / 64 longs of a bit set
+ *   extids:  per row, the external docid (modified UTF-8)
+ */
+public class FeatureMatrix {
+	public static final int MAGIC = 0x46544d58;	// "FTMX"
+	public static final int VERSION = 1;
+
+	public final int featureNum;
+	public final int rows;
+	public final int[] qids;
+	public final int[] queryStart;
+	public final int[] labels;
+	public final int[] docids;
+	public final String[] extids;
+	public final DoubleBuffer[] columns;	// [feature index - 1].get(row)
+	public final BitSet[] present;		// [feature index - 1]
+
+	/**
+	 * Create an empty matrix. The rows are filled by the caller.
+	 *
+	 * @param queryStart
+	 *            The first row of each query, followed by the row count.
+	 */
+	public FeatureMatrix(int featureNum, int[] qids, int[] queryStart) {
+		this(featureNum, qids, queryStart, new DoubleBuffer[featureNum]);
+		for (int k = 0; k < featureNum; k++) {
+			columns[k] = DoubleBuffer.wrap(new double[rows]);
+		}
+	}
+
+	/**
+	 * Create an empty matrix over the given columns.
+	 */
+	private FeatureMatrix(int featureNum, int[] qids, int[] queryStart,
+			DoubleBuffer[] columns) {
+		this.featureNum = featureNum;
+		this.qids = qids;
+		this.queryStart = queryStart;
+		this.rows = queryStart[qids.length];
+		this.labels = new int[rows];
+		this.docids = new int[rows];
+		this.extids = new String[rows];
+		this.columns = columns;
+		this.present = new BitSet[featureNum];
+		for (int k = 0; k < featureNum; k++) {
+			present[k] = new BitSet(rows);
+		}
+	}
+
+	public int queries() {
+		return qids.length;
+	}
+
+	/**
+	 * Set a present feature of a row.
+	 *
+	 * @param index
+	 *            The feature index, 1 to featureNum.
+	 */
+	public void set(int row, int index, double value) {
+		columns[index - 1].put(row, value);
+		present[index - 1].set(row);
+	}
+
+	/**
+	 * Export the matrix in the svm_rank text format, one line per row.
+	 *
+	 * @param echo
+	 *            If true, the lines are also printed to stdout.
+	 */
+	public void writeSvmRank(String path, boolean echo) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(path));
+		writeSvmRank(writer, echo);
+		writer.close();
+	}
+
+	/**
+	 * Append the rows in the svm_rank text format to an open writer.
+	 */
+	public void writeSvmRank(Writer writer, boolean echo) throws IOException {
+		for (int q = 0; q < qids.length; q++) {
+			for (int row = queryStart[q]; row < queryStart[q + 1]; row++) {
+				StringBuilder out = new StringBuilder(String.format(
+						"%d\tqid:%d", labels[row], qids[q]));
+				for (int k = 0; k < featureNum; k++) {
+					if (present[k].get(row)) {
+						out.append(String.format("\t%d:%.14f", k + 1,
+								columns[k].get(row)));
+					}
+				}
+				out.append(String.format("\t#\t%s\n", extids[row]));
+				if (echo) {
+					System.out.print(out.toString());
+				}
+				writer.write(out.toString());
+			}
+		}
+	}
+
+	/**
+	 * Save the matrix in the binary format.
+	 */
+	public void write(String path) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(path)));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(featureNum);
+		out.writeInt(rows);
+		out.writeInt(qids.length);
+		for (int qid : qids) {
+			out.writeInt(qid);
+		}
+		for (int start : queryStart) {
+			out.writeInt(start);
+		}
+		for (int label : labels) {
+			out.writeInt(label);
+		}
+		for (int docid : docids) {
+			out.writeInt(docid);
+		}
+		for (DoubleBuffer column : columns) {
+			for (int row = 0; row < rows; row++) {
+				out.writeDouble(column.get(row));
+			}
+		}
+		int words = (rows + 63) / 64;
+		for (BitSet bits : present) {
+			long[] longs = Arrays.copyOf(bits.toLongArray(), words);
+			for (long word : longs) {
+				out.writeLong(word);
+			}
+		}
+		for (String extid : extids) {
+			out.writeUTF(extid);
+		}
+		out.close();
+	}
+
+	/**
+	 * Load a matrix saved by write. The file is memory-mapped; the columns
+	 * stay in the mapping and the other arrays are copied out of it in
+	 * bulk.
+	 */
+	public static FeatureMatrix read(String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		MappedByteBuffer buffer = file.getChannel().map(
+				FileChannel.MapMode.READ_ONLY, 0, file.length());
+		file.close();
+
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+			throw new IOException("Not a feature matrix: " + path);
+		}
+		int featureNum = buffer.getInt();
+		int rows = buffer.getInt();
+		int[] qids = new int[buffer.getInt()];
+		int[] queryStart = new int[qids.length + 1];
+		getInts(buffer, qids);
+		getInts(buffer, queryStart);
+		if (queryStart[qids.length] != rows) {
+			throw new IOException("Corrupt feature matrix: " + path);
+		}
+
+		FeatureMatrix matrix = new FeatureMatrix(featureNum, qids,
+				queryStart, new DoubleBuffer[featureNum]);
+		getInts(buffer, matrix.labels);
+		getInts(buffer, matrix.docids);
+		for (int k = 0; k < featureNum; k++) {
+			ByteBuffer slice = buffer.slice();
+			slice.limit(8 * rows);
+			matrix.columns[k] = slice.asDoubleBuffer();
+			buffer.position(buffer.position() + 8 * rows);
+		}
+		long[] words = new long[(rows + 63) / 64];
+		for (int k = 0; k < featureNum; k++) {
+			buffer.asLongBuffer().get(words);
+			buffer.position(buffer.position() + 8 * words.length);
+			matrix.present[k] = BitSet.valueOf(words);
+		}
+		DataInputStream in = new DataInputStream(new ByteBufferInputStream(
+				buffer));
+		for (int row = 0; row < rows; row++) {
+			matrix.extids[row] = in.readUTF();
+		}
+		return matrix;
+	}
+
+	private static void getInts(ByteBuffer buffer, int[] values) {
+		buffer.asIntBuffer().get(values);
+		buffer.position(buffer.position() + 4 * values.length);
+	}
+
+	/**
+	 * Reads a buffer from its position, for the strings.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+	}
+}
@@ -1,47 +1,126 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
-import org.apache.lucene.document.Document;
+import org.apache.lucene.util.BytesRef;
 
 public class FeatureVector {
+	// the fields of the term-based features, in feature order
+	private static final String[] FIELDS = { "body", "title", "url", "inlink" };
 	// Map<qid, qstems>
 	private Map<Integer, List<String>> qMap;
+	// Map<qid, qstems as index bytes>, converted once per query
+	private Map<Integer, BytesRef[]> qBytesMap;
+	// Map<qid, forward index term ids [field][stem]>, resolved once per
+	// query; a field's row is null if the forward index does not have it
+	private Map<Integer, int[][]> qTermIdsMap;
 	// Map<qid, Map<external_id, relevance_score>>
 	private Map<Integer, Map<String, Integer>> rjMap;
 	private final int featureNum;
+	// the feature matrix of the last construction
+	private FeatureMatrix matrix;
+	// the feature extraction worker pool, created on first use
+	private ExecutorService pool;
 
 	public FeatureVector() {
 		featureNum = 18;
 		rjMap = new HashMap<Integer, Map<String, Integer>>();
 		qMap = new HashMap<Integer, List<String>>();
+		qBytesMap = new HashMap<Integer, BytesRef[]>();
+		qTermIdsMap = new HashMap<Integer, int[][]>();
 	}
 
-	public void constructFeatureVectors(RetrievalModelLetor model, String featureVectorFile)
-			throws Exception {
-		// read pagerank scores
-		// Map<external_id, pagerank_score>
-		Map<String, Double> prMap = new HashMap<String, Double>();
-		FileInputStream prin = new FileInputStream(model.pageRankFile);
-		BufferedReader prr = new BufferedReader(new InputStreamReader(prin));
-		String prline;
-		while ((prline = prr.readLine()) != null) {
-			String[] words = prline.trim().split("\t");
-			if (!prMap.containsKey(words[0])) {
-				prMap.put(words[0], Double.parseDouble(words[1]));
-			}
-		}
-		prr.close();
-		prin.close();
-		
-		// iterate query
-		BufferedWriter resultWriter = new BufferedWriter(new FileWriter(
-				featureVectorFile));
+	public int getFeatureNum() {
+		return featureNum;
+	}
+
+	/**
+	 * @return The feature matrix built by the last call of
+	 *         constructFeatureVectors.
+	 */
+	public FeatureMatrix getFeatureMatrix() {
+		return matrix;
+	}
 
-		// sort query id in qMap
+	/**
+	 * Compute and normalize the feature vectors of all of the (query,
+	 * document) pairs in the relevance map.
+	 * 
+	 * @param featureVectorFile
+	 *            If not null, the vectors are also exported to this file in
+	 *            the svm_rank text format.
+	 * @return The feature matrix, in qid order.
+	 */
+	public FeatureMatrix constructFeatureVectors(RetrievalModelLetor model,
+			String featureVectorFile) throws Exception {
+		// sort query id in qMap, skipping queries that have no documents
+		// to judge (e.g. ones that matched nothing or ran out of time)
 		List<Integer> sortedQids = new ArrayList<Integer>(qMap.size());
-		sortedQids.addAll(qMap.keySet());
+		for (Integer qid : qMap.keySet()) {
+			if (rjMap.containsKey(qid)) {
+				sortedQids.add(qid);
+			}
+		}
 		Collections.sort(sortedQids);
-		
+		int[] qids = new int[sortedQids.size()];
+		for (int q = 0; q < qids.length; q++) {
+			qids[q] = sortedQids.get(q);
+		}
+
+		matrix = buildMatrix(model, qids, new HashMap<String, Integer>(),
+				false);
+
+		if (featureVectorFile != null) {
+			matrix.writeSvmRank(featureVectorFile, true);
+		}
+		return matrix;
+	}
+
+	/**
+	 * Compute and normalize the feature vectors of the top documents of a
+	 * first-stage ranking of one query, within the query's time budget.
+	 * The query must have been added by readToQueryMap or addQuery.
+	 * 
+	 * @param sResult
+	 *            The ranking, as external_id:score:docid strings.
+	 * @param depth
+	 *            The number of top documents.
+	 * @return The feature matrix, or null if the query ran out of time.
+	 */
+	public FeatureMatrix constructQueryFeatureVectors(
+			RetrievalModelLetor model, int qid, List<String> sResult,
+			int depth) throws Exception {
+		Map<String, Integer> docids = new HashMap<String, Integer>();
+		for (int i = 0; i < Math.min(depth, sResult.size()); i++) {
+			String[] words = sResult.get(i).trim().split(":");
+			if (words.length > 2) {
+				docids.put(words[0], Integer.parseInt(words[2]));
+			}
+		}
+		readToReleMapFromResult(qid, sResult, depth);
+		try {
+			matrix = buildMatrix(model, new int[] { qid }, docids, true);
+		} finally {
+			rjMap.remove(qid);
+		}
+		return matrix;
+	}
+
+	/**
+	 * Compute the feature vectors of the given queries on the worker pool
+	 * and normalize each feature to [0, 1] within each query. The results
+	 * are collected in the serial order, so the normalization and the
+	 * output do not depend on the threads.
+	 * 
+	 * @param docids
+	 *            Map<external_id, internal_id> of the documents whose
+	 *            internal ids are known.
+	 * @param bounded
+	 *            If true, give up when the query's time budget runs out.
+	 * @return The feature matrix, or null if it ran out of time.
+	 */
+	private FeatureMatrix buildMatrix(RetrievalModelLetor model, int[] qids,
+			Map<String, Integer> docids, boolean bounded) throws Exception {
 		// create feature disable array
 		Set<Integer> featureDisable = new HashSet<Integer>();
 		if (model.featureDisable != null) {
@@ -49,157 +128,243 @@ public class FeatureVector {
 				featureDisable.add(Integer.parseInt(fstr));
 			}
 		}
-		
-		for (int qid : sortedQids) {
-			// Map<extid, Map<fv_index, fv_value>>
-			Map<String, Map<Integer, Double>> fvMap = new HashMap<String, Map<Integer, Double>>();
-			// Map<fv_index, [min, max]>
-			Map<Integer, List<Double>> edgeMap = new HashMap<Integer, List<Double>>();
-			Iterator<Map.Entry<String, Integer>> itr = rjMap.get(qid)
-					.entrySet().iterator();
-			// iterate docs for current query
-			while (itr.hasNext()) {
-				Map.Entry<String, Integer> entry = itr.next();
-				Map<Integer, Double> featureVector = new HashMap<Integer, Double>();
-				String extid = entry.getKey();
-				int intid = QryEval.getInternalDocid(extid);
-
-				Document d = QryEval.READER.document(intid);
-				// f1 spam score for d
-				if (!featureDisable.contains(1)) {
-					double spamScore = Double.parseDouble(d.get("score"));
-					featureVector.put(1, spamScore);
-					updateEdgeValue(edgeMap, spamScore, 1);
-				}
 
-				// f2 url depth for d
-				String rawUrl = d.get("rawUrl").trim();
-				if (!featureDisable.contains(2)) {
-					//double urlDepth = (double) (rawUrl.split("/").length - 1);
-					double urlDepth = (double) (rawUrl.length() - rawUrl.replace("/", "").length());
-					featureVector.put(2, urlDepth);
-					updateEdgeValue(edgeMap, urlDepth, 2);
-				}
+		ExecutorService pool = getPool(model);
+		List<FeatureTask> tasks = new ArrayList<FeatureTask>();
+		List<Future<double[]>> futures = new ArrayList<Future<double[]>>();
+		int[] queryStart = new int[qids.length + 1];
 
-				// f3 FromWikipedia score for d
-				if (!featureDisable.contains(3)) {
-					double wikiScore = (rawUrl.contains("wikipedia.org")) ? 1 : 0;
-					featureVector.put(3, wikiScore);
-					updateEdgeValue(edgeMap, wikiScore, 3);
-				}
+		for (int q = 0; q < qids.length; q++) {
+			queryStart[q] = tasks.size();
+			for (String extid : rjMap.get(qids[q]).keySet()) {
+				Integer docid = docids.get(extid);
+				FeatureTask task = new FeatureTask(model, qids[q], extid,
+						(docid == null) ? -1 : docid, featureDisable);
+				tasks.add(task);
+				futures.add(pool.submit(task));
+			}
+		}
+		queryStart[qids.length] = tasks.size();
+
+		// normalize each feature to [0, 1] within each query
+		FeatureMatrix matrix = new FeatureMatrix(featureNum, qids, queryStart);
+		double[] min = new double[featureNum];
+		double[] max = new double[featureNum];
 
-				// f4 pagerank score for d
-				if (!featureDisable.contains(4)) {
-					if (prMap.containsKey(extid)) {
-						double prScore = prMap.get(extid);
-						featureVector.put(4, prScore);
-						updateEdgeValue(edgeMap, prScore, 4);
+		for (int q = 0; q < qids.length; q++) {
+			Arrays.fill(min, Double.POSITIVE_INFINITY);
+			Arrays.fill(max, Double.NEGATIVE_INFINITY);
+			double[][] raw = new double[queryStart[q + 1] - queryStart[q]][];
+
+			for (int row = queryStart[q]; row < queryStart[q + 1]; row++) {
+				double[] featureVector = getResult(futures.get(row), bounded);
+				if (featureVector == null) {
+					// out of time; drop the work that has not started
+					for (Future<double[]> future : futures) {
+						future.cancel(false);
 					}
+					QueryDeadline.expire();
+					return null;
 				}
-
-				// BM25, Indri, Termoverlap scores
-				String[] fields = { "body", "title", "url", "inlink" };
-
-				for (int i = 0; i < fields.length; i++) {
-					LetorScoreFromTermVector lsftv = new LetorScoreFromTermVector(
-							model, fields[i], qMap.get(qid), intid);
-					// the document does not contain this field
-					if (lsftv.getTv() == null)
-						continue;
-					
-					if (!featureDisable.contains(5 + i * 3)) {
-						double bmScore = lsftv.getBM25Score();
-						featureVector.put(5 + i * 3, bmScore);
-						updateEdgeValue(edgeMap, bmScore, 5 + i * 3);
+				for (int k = 0; k < featureNum; k++) {
+					if (!Double.isNaN(featureVector[k])) {
+						min[k] = Math.min(min[k], featureVector[k]);
+						max[k] = Math.max(max[k], featureVector[k]);
 					}
+				}
+				raw[row - queryStart[q]] = featureVector;
+				matrix.extids[row] = tasks.get(row).extid;
+				matrix.docids[row] = tasks.get(row).docid;
+				matrix.labels[row] = rjMap.get(qids[q]).get(
+						tasks.get(row).extid);
+			}
 
-					if (!featureDisable.contains(6 + i * 3)) {
-						double indriScore = lsftv.getIndriScore();
-						featureVector.put(6 + i * 3, indriScore);
-						updateEdgeValue(edgeMap, indriScore, 6 + i * 3);
-					}
+			for (int row = queryStart[q]; row < queryStart[q + 1]; row++) {
+				double[] featureVector = raw[row - queryStart[q]];
+				for (int k = 0; k < featureNum; k++) {
+					if (Double.isNaN(featureVector[k])) continue;
 
-					if (!featureDisable.contains(7 + i * 3)) {
-						double termolScore = lsftv.getTermoverlapScore();
-						featureVector.put(7 + i * 3, termolScore);
-						updateEdgeValue(edgeMap, termolScore, 7 + i * 3);
-					}
+					double normalVal = (max[k] == min[k]) ? 0
+							: (featureVector[k] - min[k]) / (max[k] - min[k]);
+					matrix.set(row, k + 1, normalVal);
 				}
-				
-				// f17 tf * idf in body
-				if (!featureDisable.contains(17)) {
-					LetorScoreFromTermVector lsftv = new LetorScoreFromTermVector(
-							model, "body", qMap.get(qid), intid);
-					if (lsftv.getTv() != null) {
-						double tfIdfScore = lsftv.getTfIdfScore();
-						featureVector.put(17, tfIdfScore);
-						updateEdgeValue(edgeMap, tfIdfScore, 17);
-					}
+			}
+		}
+		return matrix;
+	}
+
+	/**
+	 * The feature extraction worker pool, which lives until close.
+	 */
+	private ExecutorService getPool(RetrievalModelLetor model) {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(model.featureThreads,
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "features");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return pool;
+	}
+
+	/**
+	 * Stop the worker pool.
+	 */
+	public void close() {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	/**
+	 * Computes the raw (unnormalized) feature vector of one query-document
+	 * pair, with NaN for the features that are disabled or missing.
+	 * Instances run on the feature extraction worker pool, so they only
+	 * read shared state.
+	 */
+	private class FeatureTask implements Callable<double[]> {
+		private RetrievalModelLetor model;
+		private int qid;
+		private String extid;
+		private Set<Integer> featureDisable;
+		private int docid;	// -1 until call looks it up
+
+		FeatureTask(RetrievalModelLetor model, int qid, String extid,
+				int docid, Set<Integer> featureDisable) {
+			this.model = model;
+			this.qid = qid;
+			this.extid = extid;
+			this.docid = docid;
+			this.featureDisable = featureDisable;
+		}
+
+		public double[] call() throws Exception {
+			double[] featureVector = new double[featureNum];
+			Arrays.fill(featureVector, Double.NaN);
+			if (docid < 0) {
+				docid = QryEval.getInternalDocid(extid);
+			}
+			int intid = docid;
+
+			// f1-f3 come from the precomputed document attributes, so no
+			// stored document is read
+			DocAttributes attributes = QryEval.docAttributes;
+
+			// f1 spam score for d
+			if (!featureDisable.contains(1)) {
+				double spamScore = attributes.spamScore(intid);
+				if (!Double.isNaN(spamScore)) {
+					featureVector[0] = spamScore;
 				}
-				
-				// f18 unrankedboolean score in body
-				if (!featureDisable.contains(18)) {
-					LetorScoreFromTermVector lsftv = new LetorScoreFromTermVector(
-							model, "body", qMap.get(qid), intid);
-					if (lsftv.getTv() != null) {
-						double booleanScore = lsftv.getBooleanScore();
-						featureVector.put(18, booleanScore);
-						updateEdgeValue(edgeMap, booleanScore, 18);
-					}
+			}
+
+			// f2 url depth for d
+			if (!featureDisable.contains(2)) {
+				double urlDepth = attributes.urlDepth(intid);
+				if (urlDepth >= 0) {
+					featureVector[1] = urlDepth;
+				}
+			}
+
+			// f3 FromWikipedia score for d
+			if (!featureDisable.contains(3)) {
+				double wikiScore = attributes.wikipedia(intid);
+				if (wikiScore >= 0) {
+					featureVector[2] = wikiScore;
 				}
+			}
 
-				fvMap.put(extid, featureVector);
+			// f4 pagerank score for d
+			if (!featureDisable.contains(4)) {
+				double prScore = QryEval.priorStore.get(intid);
+				if (!Double.isNaN(prScore)) {
+					featureVector[3] = prScore;
+				}
 			}
 
-			// normalize the featureVector and output
-			Iterator<Map.Entry<String, Map<Integer, Double>>> normalItr = fvMap
-					.entrySet().iterator();
-			// iterate each doc
-			while (normalItr.hasNext()) {
-				Map.Entry<String, Map<Integer, Double>> entry = normalItr
-						.next();
-				String extid = entry.getKey();
-				Map<Integer, Double> featureVector = entry.getValue();
-				StringBuilder out = new StringBuilder(String.format(
-						"%d\tqid:%d", rjMap.get(qid).get(extid), qid));
-				// iterate each feature
-				for (int index = 1; index <= featureNum; index++) {
-					if (!featureVector.containsKey(index)) continue;
-					
-					double min = edgeMap.get(index).get(0);
-					double max = edgeMap.get(index).get(1);
-					double normalVal = (max == min) ? 0 : (featureVector
-							.get(index) - min) / (max - min);
-					//double normalVal = featureVector.get(index);
-					// featureVector.put(index, normalVal);
-					out.append(String.format("\t%d:%.14f", index, normalVal));
+			// BM25, Indri, Termoverlap scores. Each field's term vector
+			// (or forward index entry) is read once and shared by all of
+			// the features below.
+			LetorScoreFromTermVector[] scorers = new LetorScoreFromTermVector[FIELDS.length];
+			int[][] termIds = qTermIdsMap.get(qid);
+
+			for (int i = 0; i < FIELDS.length; i++) {
+				scorers[i] = LetorScoreFromTermVector.create(model,
+						FIELDS[i], qMap.get(qid), qBytesMap.get(qid),
+						termIds[i], intid);
+				LetorScoreFromTermVector lsftv = scorers[i];
+				// the document does not contain this field
+				if (!lsftv.hasField())
+					continue;
+			
+				if (!featureDisable.contains(5 + i * 3)) {
+					double bmScore = lsftv.getBM25Score();
+					featureVector[4 + i * 3] = bmScore;
 				}
 
-				out.append(String.format("\t#\t%s\n", extid));
-				System.out.print(out.toString());
-				resultWriter.write(out.toString());
+				if (!featureDisable.contains(6 + i * 3)) {
+					double indriScore = lsftv.getIndriScore();
+					featureVector[5 + i * 3] = indriScore;
+				}
+
+				if (!featureDisable.contains(7 + i * 3)) {
+					double termolScore = lsftv.getTermoverlapScore();
+					featureVector[6 + i * 3] = termolScore;
+				}
+			}
+		
+			// f17 tf * idf in body
+			if (!featureDisable.contains(17)) {
+				LetorScoreFromTermVector lsftv = scorers[0];
+				if (lsftv.hasField()) {
+					double tfIdfScore = lsftv.getTfIdfScore();
+					featureVector[16] = tfIdfScore;
+				}
 			}
+		
+			// f18 unrankedboolean score in body
+			if (!featureDisable.contains(18)) {
+				LetorScoreFromTermVector lsftv = scorers[0];
+				if (lsftv.hasField()) {
+					double booleanScore = lsftv.getBooleanScore();
+					featureVector[17] = booleanScore;
+				}
+			}
+
+			return featureVector;
 		}
-		resultWriter.close();
 	}
 
-	public void updateEdgeValue(Map<Integer, List<Double>> map, double score,
-			int index) {
-		if (map.containsKey(index)) {
-			// min and max value already exist
-			if (score > map.get(index).get(1)) {
-				// update max value
-				map.get(index).set(1, score);
+	/**
+	 * Wait for a feature vector, and rethrow the exception of a task that
+	 * failed.
+	 * 
+	 * @param bounded
+	 *            If true, wait only until the query's deadline.
+	 * @return The feature vector, or null if the deadline passed first.
+	 */
+	private static double[] getResult(Future<double[]> future,
+			boolean bounded) throws Exception {
+		try {
+			if (!bounded) {
+				return future.get();
+			}
+			long remaining = QueryDeadline.remainingNanos();
+			if (remaining <= 0) {
+				return future.isDone() ? future.get() : null;
 			}
-			if (score < map.get(index).get(0)) {
-				// update min value
-				map.get(index).set(0, score);
+			return future.get(remaining, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			return null;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
 			}
-		} else {
-			List<Double> temp = new ArrayList<Double>(2);
-			temp.add(score);
-			temp.add(score);
-			map.put(index, temp);
+			throw e;
 		}
 	}
 
@@ -212,21 +377,56 @@ public class FeatureVector {
 			String[] words = qline.trim().split(":");
 			int qid = Integer.parseInt(words[0]);
 			if (!qMap.containsKey(qid)) {
-				List<String> tokens = new ArrayList<String>();
-				for (String token : words[1].trim().split("[ \t]")) {
-					if (QryEval.tokenizeQuery(token).length > 0) {
-						tokens.add(QryEval.tokenizeQuery(token)[0]);
-					}
-				}
-				if (tokens.size() > 0) {
-					qMap.put(qid, tokens);
-				}
+				addQuery(qid, words[1]);
 			}
 		}
 		qr.close();
 		qin.close();
 	}
 
+	/**
+	 * Add the stems of a query. Queries without any stems are ignored.
+	 * 
+	 * @param text
+	 *            The query text, without the qid.
+	 */
+	public void addQuery(int qid, String text) throws Exception {
+		List<String> tokens = new ArrayList<String>();
+		for (String token : text.trim().split("[ \t]")) {
+			if (QryEval.tokenizeQuery(token).length > 0) {
+				tokens.add(QryEval.tokenizeQuery(token)[0]);
+			}
+		}
+		if (tokens.size() > 0) {
+			BytesRef[] bytes = new BytesRef[tokens.size()];
+			for (int q = 0; q < bytes.length; q++) {
+				bytes[q] = new BytesRef(tokens.get(q));
+			}
+			int[][] termIds = new int[FIELDS.length][];
+			ForwardIndex index = QryEval.forwardIndex;
+			for (int i = 0; index != null && i < FIELDS.length; i++) {
+				int f = index.fieldNumber(FIELDS[i]);
+				if (f < 0) {
+					continue;
+				}
+				termIds[i] = new int[tokens.size()];
+				for (int q = 0; q < tokens.size(); q++) {
+					termIds[i][q] = index.termId(f, tokens.get(q));
+				}
+			}
+			qMap.put(qid, tokens);
+			qBytesMap.put(qid, bytes);
+			qTermIdsMap.put(qid, termIds);
+		}
+	}
+
+	/**
+	 * @return Whether the query has been added and has stems.
+	 */
+	public boolean hasQuery(int qid) {
+		return qMap.containsKey(qid);
+	}
+
 	public void readToReleMapFromFile(String trainingQrelsFile) throws Exception {
 		// read relevance judgements
 		FileInputStream din = new FileInputStream(trainingQrelsFile);
@@ -249,11 +449,23 @@ public class FeatureVector {
 	}
 	
 	public void readToReleMapFromResult(int qid, List<String> sResult) throws Exception {
+		readToReleMapFromResult(qid, sResult, 100);
+	}
+
+	/**
+	 * Add the top documents of a ranking to the relevance map, with
+	 * relevance 0.
+	 * 
+	 * @param depth
+	 *            The number of top documents.
+	 */
+	public void readToReleMapFromResult(int qid, List<String> sResult,
+			int depth) throws Exception {
 		if (sResult == null || sResult.size() < 1) {
 			throw new Exception("sResult equals null!");
 		}
 		// sResult format => external_id:score:docid
-		for (int i = 0; i < Math.min(100, sResult.size()); i++) {
+		for (int i = 0; i < Math.min(depth, sResult.size()); i++) {
 			String line = sResult.get(i);
 			String[] words = line.trim().split(":");
 			if (rjMap.containsKey(qid)) {
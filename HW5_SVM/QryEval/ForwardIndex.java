@@ -0,0 +1,262 @@
+/**
+ *  This class reads the forward index written by ForwardIndexBuilder.
+ *  For each document and field it holds the term ids and tfs of the
+ *  field, i.e., the information of a term vector without positions.
+ *  Term ids index a dictionary with the string, df and ctf of each
+ *  term, so query expansion and feature extraction can process a
+ *  document without reading a Lucene term vector or allocating
+ *  strings.
+ *
+ *  Term ids are assigned field by field in term order, so the term
+ *  ids of a document are in the same order as its term vector.
+ *
+ *  The file is memory-mapped and read with absolute gets only, so one
+ *  instance can be shared by several threads.
+ *
+ *  File layout (DataOutputStream, big-endian):
+ *    header:     MAGIC, VERSION, maxDoc of the index it was built from,
+ *                field count, field names
+ *    postings:   one block per (document, field) that has a term
+ *                vector: per term VInt term id gap, VInt tf
+ *    offsets:    maxDoc * fields + 1 longs; block (d, f) spans
+ *                offsets[d * fields + f] to the next offset
+ *    dictionary: entry count, then (field number, term, df, ctf), in
+ *                term id order
+ *    trailer:    the offsets of the offset table and the dictionary
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+public class ForwardIndex {
+
+  public static final int MAGIC = 0x46574458;	// "FWDX"
+  public static final int VERSION = 1;
+
+  /**
+   *  The terms of one field of one document.  A DocVector is filled
+   *  by read and can be reused for any number of documents.
+   */
+  public static class DocVector {
+    public int size = 0;			// The number of distinct terms
+    public int[] termIds = new int[64];
+    public int[] tfs = new int[64];
+  }
+
+  private MappedByteBuffer buffer;
+  private int maxDoc;
+  private String[] fields;
+  private long offsetTable;
+
+  private String[] terms;
+  private int[] df;
+  private long[] ctf;
+  private List<Map<String, Integer>> termIds = new ArrayList<Map<String, Integer>>();
+
+  /**
+   *  Open a forward index, map it and read its dictionary.
+   *  @param path The path of the forward index file.
+   *  @throws IOException
+   */
+  public ForwardIndex(String path) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+
+    if (file.length() > Integer.MAX_VALUE)
+      throw new IOException("Forward index is too large to map: " + path);
+
+    this.buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					file.length());
+    file.close();
+
+    DataInputStream in = new DataInputStream(new ByteBufferInputStream(0));
+
+    if (in.readInt() != MAGIC || in.readInt() != VERSION)
+      throw new IOException("Not a forward index: " + path);
+    this.maxDoc = in.readInt();
+    if (this.maxDoc != QryEval.READER.maxDoc())
+      throw new IOException("Forward index was built for another index: " + path);
+
+    this.fields = new String[in.readInt()];
+    for (int f = 0; f < this.fields.length; f++) {
+      this.fields[f] = in.readUTF();
+      this.termIds.add(new HashMap<String, Integer>());
+    }
+
+    int limit = this.buffer.limit();
+    this.offsetTable = this.buffer.getLong(limit - 16);
+    in = new DataInputStream(new BufferedInputStream(new ByteBufferInputStream(
+      (int) this.buffer.getLong(limit - 8))));
+
+    int n = in.readInt();
+    this.terms = new String[n];
+    this.df = new int[n];
+    this.ctf = new long[n];
+
+    for (int id = 0; id < n; id++) {
+      int field = in.readInt();
+      this.terms[id] = in.readUTF();
+      this.df[id] = in.readInt();
+      this.ctf[id] = in.readLong();
+      this.termIds.get(field).put(this.terms[id], id);
+    }
+  }
+
+  /**
+   *  The number of a field in this index.
+   *  @param field A field name.
+   *  @return The field number, or -1 if the field is not indexed.
+   */
+  public int fieldNumber(String field) {
+    for (int f = 0; f < this.fields.length; f++)
+      if (this.fields[f].equals(field))
+	return f;
+    return -1;
+  }
+
+  /**
+   *  The id of a term in a field.
+   *  @param field A field number.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The term id, or -1 if the term does not occur in the field.
+   */
+  public int termId(int field, String term) {
+    Integer id = this.termIds.get(field).get(term);
+    return (id == null) ? -1 : id;
+  }
+
+  /**
+   *  @param termId A term id.
+   *  @return The term string.  The same String is returned every time.
+   */
+  public String term(int termId) {
+    return this.terms[termId];
+  }
+
+  /**
+   *  @param termId A term id.
+   *  @return The number of documents that contain the term.
+   */
+  public int df(int termId) {
+    return this.df[termId];
+  }
+
+  /**
+   *  @param termId A term id.
+   *  @return The number of occurrences of the term in the collection.
+   */
+  public long ctf(int termId) {
+    return this.ctf[termId];
+  }
+
+  /**
+   *  Read the terms of a field of a document.
+   *  @param docid An internal document id.
+   *  @param field A field number.
+   *  @param vector The DocVector to fill.
+   *  @return False if the document has no term vector for the field.
+   */
+  public boolean read(int docid, int field, DocVector vector) {
+    int p = offset(docid, field);
+    int end = offset(docid, field + 1);
+    int termId = 0;
+    int n = 0;
+
+    while (p < end) {
+      if (n == vector.termIds.length) {
+	vector.termIds = Arrays.copyOf(vector.termIds, n * 2);
+	vector.tfs = Arrays.copyOf(vector.tfs, n * 2);
+      }
+      termId += readVInt(p);
+      p = skipVInt(p);
+      vector.termIds[n] = termId;
+      vector.tfs[n] = readVInt(p);
+      p = skipVInt(p);
+      n++;
+    }
+
+    vector.size = n;
+    return n > 0;
+  }
+
+  /**
+   *  Look up the tfs of a few terms in a field of a document, without
+   *  allocating anything.
+   *  @param docid An internal document id.
+   *  @param field A field number.
+   *  @param termIds The term ids to look up; -1 entries are skipped.
+   *  @param tfs Receives the tf of each term, 0 if it does not occur.
+   *  @return False if the document has no term vector for the field.
+   */
+  public boolean termFreqs(int docid, int field, int[] termIds, int[] tfs) {
+    int p = offset(docid, field);
+    int end = offset(docid, field + 1);
+    int termId = 0;
+
+    Arrays.fill(tfs, 0);
+    if (p == end)
+      return false;
+
+    while (p < end) {
+      termId += readVInt(p);
+      p = skipVInt(p);
+      int tf = readVInt(p);
+      p = skipVInt(p);
+      for (int i = 0; i < termIds.length; i++)
+	if (termIds[i] == termId)
+	  tfs[i] = tf;
+    }
+
+    return true;
+  }
+
+  /**
+   *  The start of the block of a (document, field).  The block ends at
+   *  the offset of the next field, which may be in the next document.
+   */
+  private int offset(int docid, int field) {
+    return (int) this.buffer.getLong((int) this.offsetTable +
+				     8 * (docid * this.fields.length + field));
+  }
+
+  /**
+   *  Read the variable-length int (ImpactIndex.writeVInt) at p.
+   */
+  private int readVInt(int p) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = this.buffer.get(p++);
+      value |= (b & 0x7f) << shift;
+      if (b >= 0)
+	return value;
+    }
+  }
+
+  /**
+   *  The position after the variable-length int at p.
+   */
+  private int skipVInt(int p) {
+    while (this.buffer.get(p++) < 0)
+      ;
+    return p;
+  }
+
+  /**
+   *  Reads the mapped file from an offset, for the header and the
+   *  dictionary.
+   */
+  private class ByteBufferInputStream extends InputStream {
+    private int pos;
+
+    ByteBufferInputStream(int pos) {
+      this.pos = pos;
+    }
+
+    public int read() {
+      if (this.pos >= buffer.limit())
+	return -1;
+      return buffer.get(this.pos++) & 0xFF;
+    }
+  }
+}
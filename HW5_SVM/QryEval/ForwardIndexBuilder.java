@@ -0,0 +1,154 @@
+/**
+ *  This class builds the forward index read by ForwardIndex.  It is
+ *  run once per index, offline:
+ *
+ *    java ForwardIndexBuilder parameterFile
+ *
+ *  The parameter file uses the QryEval format.  It needs indexPath and
+ *  forwardIndexPath.  forwardIndexFields (default body,title,url,inlink)
+ *  lists the fields to store; their terms and tfs are copied from the
+ *  term vectors, and the df and ctf of every term from the inverted
+ *  index.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.*;
+
+public class ForwardIndexBuilder {
+
+  /**
+   *  @param args The name of a parameter file.
+   *  @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      System.err.println("Usage:  java ForwardIndexBuilder paramFile");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameters(args[0]);
+
+    if (!params.containsKey("indexPath") ||
+	!params.containsKey("forwardIndexPath"))
+      QryEval.fatalError("Error: indexPath and forwardIndexPath are required.");
+
+    QryEval.READER = DirectoryReader.open(FSDirectory.open(new File(params
+	.get("indexPath"))));
+
+    String[] fields = (params.containsKey("forwardIndexFields") ?
+		       params.get("forwardIndexFields") :
+		       "body,title,url,inlink").split(",");
+    for (int f = 0; f < fields.length; f++)
+      fields[f] = fields[f].trim();
+
+    write(params.get("forwardIndexPath"), fields);
+    QryEval.READER.close();
+  }
+
+  /**
+   *  Assign term ids field by field in term order, and write the
+   *  postings, offsets, dictionary and trailer.
+   */
+  private static void write(String path, String[] fields) throws IOException {
+
+    IndexReader reader = QryEval.READER;
+    int maxDoc = reader.maxDoc();
+
+    //  The dictionary.  Term ids are assigned in the order of the
+    //  field's TermsEnum, which is the order of its term vectors.
+
+    List<Map<String, Integer>> termIds = new ArrayList<Map<String, Integer>>();
+    ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+    DataOutputStream dict = new DataOutputStream(dictionary);
+    int nextId = 0;
+
+    for (int f = 0; f < fields.length; f++) {
+      Map<String, Integer> ids = new HashMap<String, Integer>();
+      termIds.add(ids);
+
+      Terms terms = MultiFields.getTerms(reader, fields[f]);
+      if (terms == null)
+	continue;
+
+      TermsEnum termsEnum = terms.iterator(null);
+      BytesRef term;
+      while ((term = termsEnum.next()) != null) {
+	String s = term.utf8ToString();
+	ids.put(s, nextId++);
+	dict.writeInt(f);
+	dict.writeUTF(s);
+	dict.writeInt(termsEnum.docFreq());
+	dict.writeLong(termsEnum.totalTermFreq());
+      }
+    }
+
+    //  The postings of each (document, field), from its term vector.
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+	new FileOutputStream(path)));
+    out.writeInt(ForwardIndex.MAGIC);
+    out.writeInt(ForwardIndex.VERSION);
+    out.writeInt(maxDoc);
+    out.writeInt(fields.length);
+    for (String field : fields)
+      out.writeUTF(field);
+
+    long[] offsets = new long[maxDoc * fields.length + 1];
+    ByteArrayOutputStream block = new ByteArrayOutputStream();
+    long offset = out.size();
+    long postings = 0;
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      for (int f = 0; f < fields.length; f++) {
+	offsets[docid * fields.length + f] = offset;
+
+	Terms vector = reader.getTermVector(docid, fields[f]);
+	if (vector == null)
+	  continue;
+
+	block.reset();
+	TermsEnum termsEnum = vector.iterator(null);
+	Map<String, Integer> ids = termIds.get(f);
+	int prevId = 0;
+	BytesRef term;
+
+	while ((term = termsEnum.next()) != null) {
+	  int id = ids.get(term.utf8ToString());
+	  ImpactIndex.writeVInt(block, id - prevId);
+	  ImpactIndex.writeVInt(block, (int) termsEnum.totalTermFreq());
+	  prevId = id;
+	  postings++;
+	}
+
+	block.writeTo(out);
+	offset += block.size();
+      }
+    }
+    offsets[maxDoc * fields.length] = offset;
+
+    long offsetTable = offset;
+    for (long o : offsets)
+      out.writeLong(o);
+
+    long dictionaryOffset = offsetTable + 8L * offsets.length;
+    out.writeInt(nextId);
+    dictionary.writeTo(out);
+    out.writeLong(offsetTable);
+    out.writeLong(dictionaryOffset);
+    out.close();
+
+    if (dictionaryOffset + 4 + dictionary.size() + 16 > Integer.MAX_VALUE)
+      System.err.println("Warning: the forward index is larger than 2 GB " +
+			 "and cannot be mapped.");
+
+    System.out.println("Forward index: " + maxDoc + " documents, " +
+		       fields.length + " fields, " + nextId + " terms, " +
+		       postings + " postings, " + offsetTable +
+		       " bytes of postings");
+  }
+}
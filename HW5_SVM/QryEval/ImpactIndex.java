@@ -0,0 +1,390 @@
+/**
+ *  This class reads the impact index written by ImpactIndexBuilder and
+ *  evaluates simple queries on it score-at-a-time.
+ *
+ *  For each (term, field) the impact index stores the postings
+ *  grouped by quantized impact, highest impact first; within a group
+ *  docids are increasing and delta coded.  An impact is the term's
+ *  contribution to a document's score: the BM25 term score (with
+ *  qtf=1), or for Indri log(p(t|d) / (lambda * p(t|C))), i.e. how much
+ *  a match raises the document above the smallest possible default
+ *  score.  Indri impacts therefore rank documents in log space and
+ *  approximate the default score of unmatched terms by that floor.
+ *
+ *  Score-at-a-time evaluation visits the impact groups of all query
+ *  terms in decreasing order of weighted impact and adds them into a
+ *  ScoreAccumulator.  It stops as soon as the postings that are left
+ *  can no longer change which documents are in the top k, so queries
+ *  with very common terms never read the long low-impact tail.
+ *
+ *  File layout (DataOutputStream, big-endian):
+ *    header:     MAGIC, VERSION, model, param1, param2, param3,
+ *                levels, scale
+ *    postings:   one block per (term, field), see ImpactIndexBuilder
+ *    dictionary: entry count, then (field, term, offset, length)
+ *    trailer:    the offset of the dictionary
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class ImpactIndex {
+
+  public static final int MAGIC = 0x494d5058;	// "IMPX"
+  public static final int VERSION = 1;
+  public static final int MODEL_BM25 = 0;
+  public static final int MODEL_INDRI = 1;
+
+  //  If true, evaluate prints how many postings each query read.
+  public static boolean verbose = false;
+
+  private RandomAccessFile file;
+  private int model;
+  private double param1, param2, param3;
+  private double scale;		// impact = quantized impact * scale
+  private Map<String, long[]> dictionary = new HashMap<String, long[]>();
+  private byte[] buffer = new byte[1 << 16];
+
+  /**
+   *  Open an impact index and read its dictionary.
+   *  @param path The path of the impact index file.
+   *  @throws IOException
+   */
+  public ImpactIndex(String path) throws IOException {
+    this.file = new RandomAccessFile(path, "r");
+
+    if (this.file.readInt() != MAGIC || this.file.readInt() != VERSION)
+      throw new IOException("Not an impact index: " + path);
+
+    this.model = this.file.readInt();
+    this.param1 = this.file.readDouble();
+    this.param2 = this.file.readDouble();
+    this.param3 = this.file.readDouble();
+    this.file.readInt();		// levels
+    this.scale = this.file.readDouble();
+
+    this.file.seek(this.file.length() - 8);
+    this.file.seek(this.file.readLong());
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+	new FileInputStream(this.file.getFD())));
+    int n = in.readInt();
+
+    for (int i = 0; i < n; i++) {
+      String field = in.readUTF();
+      String term = in.readUTF();
+      long offset = in.readLong();
+      long length = in.readInt();
+      this.dictionary.put(field + ":" + term, new long[] { offset, length });
+    }
+  }
+
+  /**
+   *  Whether the impacts were computed with this retrieval model and
+   *  the same parameters.
+   *  @param r A retrieval model.
+   *  @return true if the impact index can be used with r.
+   */
+  public boolean matches(RetrievalModel r) {
+    if (this.model == MODEL_BM25 && r instanceof RetrievalModelBM25)
+      return this.param1 == r.getParameter("k_1") &&
+	this.param2 == r.getParameter("b");
+    if (this.model == MODEL_INDRI && r instanceof RetrievalModelIndri)
+      return this.param1 == r.getParameter("mu") &&
+	this.param2 == r.getParameter("lambda");
+    return false;
+  }
+
+  /**
+   *  Evaluate a query score-at-a-time, if it is a #SUM of terms (BM25
+   *  impacts) or an #AND or #WAND of terms (Indri impacts).
+   *  @param q A query tree.
+   *  @param r The retrieval model.
+   *  @param k The number of documents to retrieve.
+   *  @return The top k documents, or null if the query or the
+   *  retrieval model is not supported by this impact index.
+   *  @throws IOException
+   */
+  public QryResult evaluate(Qryop q, RetrievalModel r, int k)
+    throws IOException {
+
+    if (! matches(r))
+      return null;
+
+    //  The query parser wraps structured queries in a default
+    //  operator; look through single-argument wrappers.
+
+    while ((q instanceof QryopSlSum || q instanceof QryopSlAnd) &&
+	   q.args.size() == 1 && q.args.get(0) instanceof QryopSl)
+      q = q.args.get(0);
+
+    int n = q.args.size();
+    double[] weights = new double[n];
+
+    if (this.model == MODEL_BM25 && q instanceof QryopSlSum) {
+      Arrays.fill(weights, 1.0);
+    } else if (this.model == MODEL_INDRI && q instanceof QryopSlAnd) {
+      Arrays.fill(weights, 1.0 / n);
+    } else if (this.model == MODEL_INDRI && q instanceof QryopSlWeight &&
+	       ((QryopSlWeight) q).getIsWand()) {
+      double totalWeight = 0;
+      for (double w : ((QryopSlWeight) q).weight)
+	totalWeight += w;
+      for (int i = 0; i < n; i++)
+	weights[i] = ((QryopSlWeight) q).weight.get(i) / totalWeight;
+    } else {
+      return null;
+    }
+
+    //  Read the impact groups of each term.
+
+    int[][] impacts = new int[n][];
+    int[][][] docids = new int[n][][];
+    int blockCount = 0;
+    long totalPostings = 0;
+
+    for (int i = 0; i < n; i++) {
+      if (! (q.args.get(i) instanceof QryopIlTerm))
+	return null;
+
+      QryopIlTerm term = (QryopIlTerm) q.args.get(i);
+      readPostings(term.getField(), term.getTerm(), i, impacts, docids);
+      blockCount += impacts[i].length;
+      for (int[] group : docids[i])
+	totalPostings += group.length;
+    }
+
+    //  Order every (term, group) block by its weighted impact.
+
+    final double[] contribution = new double[blockCount];
+    int[] blockTerm = new int[blockCount];
+    int[] blockGroup = new int[blockCount];
+    Integer[] order = new Integer[blockCount];
+    double[][] termContribution = new double[n][];
+    int b = 0;
+
+    for (int i = 0; i < n; i++) {
+      termContribution[i] = new double[impacts[i].length + 1];
+      for (int j = 0; j < impacts[i].length; j++) {
+	contribution[b] = weights[i] * impacts[i][j] * this.scale;
+	termContribution[i][j] = contribution[b];
+	blockTerm[b] = i;
+	blockGroup[b] = j;
+	order[b] = b;
+	b++;
+      }
+    }
+
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer x, Integer y) {
+	return Double.compare(contribution[y], contribution[x]);
+      }
+    });
+
+    //  remaining is the most that any document can still gain from
+    //  the blocks that have not been processed yet.
+
+    double remaining = 0;
+    for (int i = 0; i < n; i++)
+      remaining += termContribution[i][0];
+
+    ScoreAccumulator acc = ScoreAccumulator.get();
+    long processed = 0, sinceCheck = 0;
+    int o;
+    boolean settled = false;
+
+    for (o = 0; o < blockCount; o++) {
+      int i = blockTerm[order[o]];
+      int j = blockGroup[order[o]];
+      double c = contribution[order[o]];
+
+      for (int docid : docids[i][j])
+	acc.add(docid, c);
+
+      remaining -= termContribution[i][j] - termContribution[i][j + 1];
+      processed += docids[i][j].length;
+      sinceCheck += docids[i][j].length;
+
+      if (QueryDeadline.expired(docids[i][j].length))
+	break;
+
+      if (sinceCheck >= Math.max(k, acc.touchedCount() / 4)) {
+	sinceCheck = 0;
+	if (topKSettled(acc, k, remaining)) {
+	  settled = true;
+	  o++;
+	  break;
+	}
+      }
+    }
+
+    if (verbose)
+      System.out.println("Impact evaluation: " + processed + " of " +
+			 totalPostings + " postings");
+
+    //  The top k documents are known, but their scores may still miss
+    //  the blocks that were not processed.  Look each of them up in
+    //  those blocks, so their scores and order are exact.
+
+    QryResult result = new QryResult();
+    int[] top = topK(acc, k);
+    Arrays.sort(top);
+    double[] scores = new double[top.length];
+
+    for (int t = 0; t < top.length; t++)
+      scores[t] = acc.getScore(top[t]);
+
+    for (; settled && o < blockCount; o++) {
+      int[] group = docids[blockTerm[order[o]]][blockGroup[order[o]]];
+      for (int t = 0; t < top.length; t++)
+	if (Arrays.binarySearch(group, top[t]) >= 0)
+	  scores[t] += contribution[order[o]];
+    }
+
+    for (int t = 0; t < top.length; t++)
+      result.docScores.add(top[t], scores[t]);
+
+    return result;
+  }
+
+  /**
+   *  Decode the postings block of (field, term) into impact groups.
+   */
+  private void readPostings(String field, String term, int i,
+			    int[][] impacts, int[][][] docids)
+    throws IOException {
+
+    long[] entry = this.dictionary.get(field + ":" + term);
+
+    if (entry == null) {
+      impacts[i] = new int[0];
+      docids[i] = new int[0][];
+      return;
+    }
+
+    int length = (int) entry[1];
+    if (this.buffer.length < length)
+      this.buffer = new byte[length];
+    this.file.seek(entry[0]);
+    this.file.readFully(this.buffer, 0, length);
+
+    int[] pos = { 0 };
+    int groups = readVInt(this.buffer, pos);
+    impacts[i] = new int[groups];
+    docids[i] = new int[groups][];
+
+    for (int j = 0; j < groups; j++) {
+      impacts[i][j] = readVInt(this.buffer, pos);
+      int count = readVInt(this.buffer, pos);
+      int docid = 0;
+      docids[i][j] = new int[count];
+      for (int d = 0; d < count; d++) {
+	docid += readVInt(this.buffer, pos);
+	docids[i][j][d] = docid;
+      }
+    }
+  }
+
+  /**
+   *  The top k set can no longer change if the k'th best score is at least
+   *  the (k+1)'th best score plus everything that is left to add.
+   *  Scores are never negative, so this also shuts out documents that
+   *  have not been seen yet.
+   */
+  private static boolean topKSettled(ScoreAccumulator acc, int k,
+				     double remaining) {
+    if (remaining <= 0)
+      return true;
+    if (acc.touchedCount() < k)
+      return false;
+
+    int[] top = topK(acc, k + 1);
+    double[] scores = new double[top.length];
+
+    for (int i = 0; i < top.length; i++)
+      scores[i] = acc.getScore(top[i]);
+    Arrays.sort(scores);
+
+    //  With k+1 documents, scores[0] is the (k+1)'th best score.
+
+    if (top.length > k)
+      return scores[1] >= scores[0] + remaining;
+    else
+      return scores[0] >= remaining;
+  }
+
+  /**
+   *  Select the k touched documents with the highest scores.  Ties are
+   *  broken by lower docid.
+   */
+  private static int[] topK(ScoreAccumulator acc, int k) {
+    int n = Math.min(k, acc.touchedCount());
+    int[] heap = new int[n];		// min-heap of docids by score
+    int size = 0;
+
+    for (int t = 0; t < acc.touchedCount(); t++) {
+      int docid = acc.touchedDocid(t);
+      if (size < n) {
+	int c = size++;
+	while (c > 0 && worse(acc, docid, heap[(c - 1) / 2])) {
+	  heap[c] = heap[(c - 1) / 2];
+	  c = (c - 1) / 2;
+	}
+	heap[c] = docid;
+      } else if (n > 0 && worse(acc, heap[0], docid)) {
+	heap[0] = docid;
+	int p = 0;
+	while (true) {
+	  int c = 2 * p + 1;
+	  if (c >= size)
+	    break;
+	  if (c + 1 < size && worse(acc, heap[c + 1], heap[c]))
+	    c++;
+	  if (! worse(acc, heap[c], heap[p]))
+	    break;
+	  int tmp = heap[c];
+	  heap[c] = heap[p];
+	  heap[p] = tmp;
+	  p = c;
+	}
+      }
+    }
+
+    return heap;
+  }
+
+  private static boolean worse(ScoreAccumulator acc, int a, int b) {
+    double sa = acc.getScore(a), sb = acc.getScore(b);
+    return sa < sb || (sa == sb && a > b);
+  }
+
+  /**
+   *  Append a variable-length int: 7 bits per byte, low bits first,
+   *  the high bit set on every byte but the last.
+   *  @param out The stream to write to.
+   *  @param value A non-negative int.
+   */
+  public static void writeVInt(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /**
+   *  Read a variable-length int written by writeVInt.
+   *  @param buf The bytes to read from.
+   *  @param pos pos[0] is the read position; it is advanced.
+   *  @return The int.
+   */
+  public static int readVInt(byte[] buf, int[] pos) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = buf[pos[0]++];
+      value |= (b & 0x7f) << shift;
+      if (b >= 0)
+	return value;
+    }
+  }
+}
@@ -0,0 +1,265 @@
+/**
+ *  This class builds the impact index read by ImpactIndex.  It is run
+ *  once per index and retrieval model, offline:
+ *
+ *    java ImpactIndexBuilder parameterFile
+ *
+ *  The parameter file uses the QryEval format.  It needs indexPath,
+ *  impactIndexPath, retrievalAlgorithm (BM25 or Indri) and the model's
+ *  parameters.  impactBits (default 8) sets the quantization and
+ *  impactFields (default body,title,url,inlink) the fields to index.
+ *
+ *  The impact of a posting is computed with the same formula as
+ *  QryopSlScore, quantized linearly against the largest impact in the
+ *  index, and stored as a block per (term, field):
+ *
+ *    VInt groups, then per group, in decreasing impact order:
+ *    VInt quantized impact, VInt count, count VInt docid gaps
+ *
+ *  Postings with a quantized impact of 0 are dropped.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.*;
+
+public class ImpactIndexBuilder {
+
+  private int model;
+  private double param1, param2, param3;
+  private int levels;
+  private String[] fields;
+
+  private double maxImpact = 0;
+
+  //  The postings of the current term.
+
+  private int[] docids = new int[1024];
+  private int[] tfs = new int[1024];
+  private double[] impacts = new double[1024];
+  private int df;
+
+  /**
+   *  @param args The name of a parameter file.
+   *  @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      System.err.println("Usage:  java ImpactIndexBuilder paramFile");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameters(args[0]);
+
+    if (!params.containsKey("indexPath") ||
+	!params.containsKey("impactIndexPath") ||
+	!params.containsKey("retrievalAlgorithm"))
+      QryEval.fatalError("Error: indexPath, impactIndexPath and " +
+			 "retrievalAlgorithm are required.");
+
+    QryEval.READER = DirectoryReader.open(FSDirectory.open(new File(params
+	.get("indexPath"))));
+    QryEval.segments = new IndexSegments(QryEval.READER);
+    QryEval.docLenStore = new DocLengthStore(QryEval.READER);
+
+    ImpactIndexBuilder builder = new ImpactIndexBuilder();
+    String algorithm = params.get("retrievalAlgorithm");
+
+    if (algorithm.equals("BM25")) {
+      builder.model = ImpactIndex.MODEL_BM25;
+      builder.param1 = Double.parseDouble(params.get("BM25:k_1"));
+      builder.param2 = Double.parseDouble(params.get("BM25:b"));
+      builder.param3 = Double.parseDouble(params.get("BM25:k_3"));
+    } else if (algorithm.equals("Indri")) {
+      builder.model = ImpactIndex.MODEL_INDRI;
+      builder.param1 = Double.parseDouble(params.get("Indri:mu"));
+      builder.param2 = Double.parseDouble(params.get("Indri:lambda"));
+      if (builder.param2 <= 0)
+	QryEval.fatalError("Error: Indri impacts need lambda > 0.");
+    } else {
+      QryEval.fatalError("Error: impacts need BM25 or Indri, not " + algorithm);
+    }
+
+    int bits = params.containsKey("impactBits") ?
+      Integer.parseInt(params.get("impactBits")) : 8;
+    if (bits < 1 || bits > 16)
+      QryEval.fatalError("Error: impactBits must be between 1 and 16.");
+    builder.levels = (1 << bits) - 1;
+
+    builder.fields = (params.containsKey("impactFields") ?
+		      params.get("impactFields") : "body,title,url,inlink")
+      .split(",");
+
+    builder.build(params.get("impactIndexPath"));
+    QryEval.READER.close();
+  }
+
+  /**
+   *  Write the impact index.  The first pass over the postings finds
+   *  the largest impact, which sets the quantization scale; the second
+   *  pass writes the blocks.
+   */
+  private void build(String path) throws IOException {
+
+    for (String field : this.fields) {
+      TermsEnum termsEnum = termsEnum(field.trim());
+      if (termsEnum == null)
+	continue;
+      while (termsEnum.next() != null) {
+	readTerm(field.trim(), termsEnum);
+	for (int i = 0; i < this.df; i++)
+	  this.maxImpact = Math.max(this.maxImpact, this.impacts[i]);
+      }
+    }
+
+    double scale = (this.maxImpact > 0) ? this.maxImpact / this.levels : 1;
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+	new FileOutputStream(path)));
+    out.writeInt(ImpactIndex.MAGIC);
+    out.writeInt(ImpactIndex.VERSION);
+    out.writeInt(this.model);
+    out.writeDouble(this.param1);
+    out.writeDouble(this.param2);
+    out.writeDouble(this.param3);
+    out.writeInt(this.levels);
+    out.writeDouble(scale);
+
+    ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+    DataOutputStream dict = new DataOutputStream(dictionary);
+    ByteArrayOutputStream block = new ByteArrayOutputStream();
+    int[] counts = new int[this.levels + 1];
+    int[] starts = new int[this.levels + 2];
+    int[] grouped = new int[1024];
+    long offset = out.size();
+    int entries = 0;
+
+    for (String field : this.fields) {
+      TermsEnum termsEnum = termsEnum(field.trim());
+      if (termsEnum == null)
+	continue;
+
+      while (termsEnum.next() != null) {
+	readTerm(field.trim(), termsEnum);
+
+	//  Quantize, then counting sort the docids by impact.  Docids
+	//  stay in increasing order within each impact.
+
+	Arrays.fill(counts, 0);
+	for (int i = 0; i < this.df; i++) {
+	  this.tfs[i] = (int) Math.round(this.impacts[i] / scale);
+	  counts[this.tfs[i]]++;
+	}
+
+	starts[this.levels] = 0;
+	for (int q = this.levels; q > 0; q--)
+	  starts[q - 1] = starts[q] + counts[q];
+
+	if (grouped.length < this.df)
+	  grouped = new int[this.df];
+	int[] next = Arrays.copyOf(starts, this.levels + 1);
+	for (int i = 0; i < this.df; i++)
+	  if (this.tfs[i] > 0)
+	    grouped[next[this.tfs[i]]++] = this.docids[i];
+
+	block.reset();
+	int groups = 0;
+	for (int q = this.levels; q > 0; q--)
+	  if (counts[q] > 0)
+	    groups++;
+	if (groups == 0)
+	  continue;
+
+	ImpactIndex.writeVInt(block, groups);
+	for (int q = this.levels; q > 0; q--) {
+	  if (counts[q] == 0)
+	    continue;
+	  ImpactIndex.writeVInt(block, q);
+	  ImpactIndex.writeVInt(block, counts[q]);
+	  int prev = 0;
+	  for (int i = starts[q]; i < starts[q] + counts[q]; i++) {
+	    ImpactIndex.writeVInt(block, grouped[i] - prev);
+	    prev = grouped[i];
+	  }
+	}
+
+	block.writeTo(out);
+	dict.writeUTF(field.trim());
+	dict.writeUTF(termsEnum.term().utf8ToString());
+	dict.writeLong(offset);
+	dict.writeInt(block.size());
+	offset += block.size();
+	entries++;
+      }
+    }
+
+    out.writeInt(entries);
+    dictionary.writeTo(out);
+    out.writeLong(offset);
+    out.close();
+
+    System.out.println("Impact index: " + entries + " terms, max impact " +
+		       this.maxImpact + ", " + this.levels + " levels");
+  }
+
+  private TermsEnum termsEnum(String field) throws IOException {
+    Terms terms = MultiFields.getTerms(QryEval.READER, field);
+    return (terms == null) ? null : terms.iterator(null);
+  }
+
+  /**
+   *  Read the postings of the current term and compute their impacts.
+   */
+  private void readTerm(String field, TermsEnum termsEnum) throws IOException {
+    DocsEnum docsEnum = termsEnum.docs(MultiFields.getLiveDocs(QryEval.READER),
+				       null, DocsEnum.FLAG_FREQS);
+    long ctf = 0;
+    this.df = 0;
+
+    while (docsEnum.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+      if (this.df == this.docids.length) {
+	this.docids = Arrays.copyOf(this.docids, this.df * 2);
+	this.tfs = Arrays.copyOf(this.tfs, this.df * 2);
+	this.impacts = Arrays.copyOf(this.impacts, this.df * 2);
+      }
+      this.docids[this.df] = docsEnum.docID();
+      this.tfs[this.df] = docsEnum.freq();
+      ctf += this.tfs[this.df];
+      this.df++;
+    }
+
+    DocLengthStore doclengthStore = QryEval.docLenStore;
+
+    if (this.model == ImpactIndex.MODEL_BM25) {
+      double k_1 = this.param1, b = this.param2;
+      int N = QryEval.READER.numDocs();
+      double avg_doclen = QryEval.READER.getSumTotalTermFreq(field) /
+	(double) QryEval.READER.getDocCount(field);
+      double idf = Math.max(0, Math.log((N - this.df + 0.5) / (this.df + 0.5)));
+
+      for (int i = 0; i < this.df; i++) {
+	long doclen = doclengthStore.getDocLength(field, this.docids[i]);
+	this.impacts[i] = idf * this.tfs[i] /
+	  (this.tfs[i] + k_1 * ((1 - b) + b * doclen / avg_doclen));
+      }
+    } else {
+      double mu = this.param1, lambda = this.param2;
+      double mleProb = ctf / (double) QryEval.READER.getSumTotalTermFreq(field);
+
+      //  Relative to lambda * p(t|C), the smallest score that any
+      //  document can get for the term.
+
+      for (int i = 0; i < this.df; i++) {
+	long doclen = doclengthStore.getDocLength(field, this.docids[i]);
+	double p = (1 - lambda) * (this.tfs[i] + mu * mleProb) / (doclen + mu)
+	  + lambda * mleProb;
+	this.impacts[i] = Math.log(p / (lambda * mleProb));
+      }
+    }
+  }
+}
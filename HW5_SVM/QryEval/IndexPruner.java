@@ -0,0 +1,599 @@
+/**
+ *  This class implements static index pruning.  It reads an index and
+ *  writes a copy whose inverted lists omit the postings that are
+ *  unlikely to place a document in the top of any ranking:
+ *
+ *    java IndexPruner parameterFile
+ *
+ *  Two pruning methods are supported (pruneMethod):
+ *
+ *    term      Term-centric pruning (Carmel et al.).  For each term,
+ *              keep the postings whose BM25 tf weight is at least
+ *              pruneEpsilon (default 0.5) times the pruneTopK'th
+ *              (default 100) largest tf weight of the term.  Terms
+ *              with at most pruneTopK postings are not pruned.
+ *
+ *    document  Document-centric pruning (Buttcher and Clarke).  For
+ *              each document, keep the pruneRatio (default 0.3) of its
+ *              terms that contribute most to the KL divergence of the
+ *              document from the collection.  Needs term vectors.
+ *
+ *  pruneFields (default body) lists the fields to prune; other fields
+ *  are copied unchanged.  Stored fields, term vectors and norms are
+ *  copied as they are, so DocLengthStore returns the original document
+ *  lengths and document length normalization is unchanged.  Collection
+ *  statistics (df, ctf, field lengths) are those of the pruned lists.
+ *
+ *  If queryFilePath and retrievalAlgorithm are given, the queries are
+ *  run on both indexes and the latency and ranking differences are
+ *  reported; with pruneQrelsFile, P@10 and MAP are reported too.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.*;
+
+public class IndexPruner {
+
+  private String method;
+  private Set<String> fields = new HashSet<String>();
+  private int topK;
+  private double epsilon;
+  private double ratio;
+  private double k_1 = 1.2, b = 0.75;
+
+  private AtomicReader reader;		// The whole index as one segment
+
+  //  Document-centric pruning: the smallest score kept per document.
+
+  private Map<String, double[]> docThresholds = new HashMap<String, double[]>();
+  private Map<String, Double> collectionProbs = new HashMap<String, Double>();
+
+  //  Term-centric pruning: the average length of each pruned field.
+
+  private Map<String, Double> avgDoclens = new HashMap<String, Double>();
+
+  /**
+   *  @param args The name of a parameter file.
+   *  @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      System.err.println("Usage:  java IndexPruner paramFile");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameters(args[0]);
+
+    if (!params.containsKey("indexPath") ||
+	!params.containsKey("prunedIndexPath"))
+      QryEval.fatalError("Error: indexPath and prunedIndexPath are required.");
+
+    String indexPath = params.get("indexPath");
+    String prunedPath = params.get("prunedIndexPath");
+    openIndex(indexPath);
+
+    IndexPruner pruner = new IndexPruner();
+    pruner.method = params.containsKey("pruneMethod") ?
+      params.get("pruneMethod") : "term";
+    pruner.topK = params.containsKey("pruneTopK") ?
+      Integer.parseInt(params.get("pruneTopK")) : 100;
+    pruner.epsilon = params.containsKey("pruneEpsilon") ?
+      Double.parseDouble(params.get("pruneEpsilon")) : 0.5;
+    pruner.ratio = params.containsKey("pruneRatio") ?
+      Double.parseDouble(params.get("pruneRatio")) : 0.3;
+    if (params.containsKey("BM25:k_1"))
+      pruner.k_1 = Double.parseDouble(params.get("BM25:k_1"));
+    if (params.containsKey("BM25:b"))
+      pruner.b = Double.parseDouble(params.get("BM25:b"));
+    for (String field : (params.containsKey("pruneFields") ?
+			 params.get("pruneFields") : "body").split(","))
+      pruner.fields.add(field.trim());
+
+    if (!pruner.method.equals("term") && !pruner.method.equals("document"))
+      QryEval.fatalError("Error: pruneMethod must be term or document.");
+
+    long startTime = System.currentTimeMillis();
+    pruner.prune(prunedPath);
+    System.out.println("Pruning time: " +
+		       (System.currentTimeMillis() - startTime) / 1000.0);
+
+    //  Report the size of the two indexes.
+
+    IndexReader pruned = DirectoryReader.open(FSDirectory.open(new File(prunedPath)));
+    System.out.println("Index size: " + directorySize(indexPath) + " -> " +
+		       directorySize(prunedPath) + " bytes");
+    for (String field : pruner.fields)
+      System.out.println("Postings in " + field + ": " +
+			 postingsCount(QryEval.READER, field) + " -> " +
+			 postingsCount(pruned, field));
+    pruned.close();
+
+    if (params.containsKey("queryFilePath") &&
+	params.containsKey("retrievalAlgorithm"))
+      compareRetrieval(params, prunedPath);
+
+    QryEval.READER.close();
+  }
+
+  /**
+   *  Open an index and the QryEval structures that query evaluation
+   *  uses.
+   */
+  private static void openIndex(String path) throws IOException {
+    QryEval.READER = DirectoryReader.open(FSDirectory.open(new File(path)));
+    QryEval.segments = new IndexSegments(QryEval.READER);
+    QryEval.docLenStore = new DocLengthStore(QryEval.READER);
+  }
+
+  /**
+   *  Write the pruned index.
+   */
+  private void prune(String path) throws IOException {
+    this.reader = SlowCompositeReaderWrapper.wrap(QryEval.READER);
+
+    for (String field : this.fields)
+      if (this.reader.getDocCount(field) > 0)
+	this.avgDoclens.put(field, this.reader.getSumTotalTermFreq(field) /
+			    (double) this.reader.getDocCount(field));
+
+    if (this.method.equals("document"))
+      for (String field : this.fields)
+	computeDocThresholds(field);
+
+    IndexWriterConfig config =
+      new IndexWriterConfig(Version.LUCENE_43, QryEval.analyzer);
+    config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    config.setSimilarity(new DocLenStoreSimilarity());
+
+    IndexWriter writer = new IndexWriter(FSDirectory.open(new File(path)), config);
+    writer.addIndexes(new PrunedReader(this.reader));
+    writer.close();
+  }
+
+  /**
+   *  Find, for every document, the smallest KL score of the terms that
+   *  document-centric pruning keeps.
+   */
+  private void computeDocThresholds(String field) throws IOException {
+    double[] thresholds = new double[this.reader.maxDoc()];
+    Bits liveDocs = this.reader.getLiveDocs();
+    TermsEnum collection = this.reader.terms(field).iterator(null);
+    double[] scores = new double[64];
+    boolean hasVectors = false;
+
+    for (int docid = 0; docid < this.reader.maxDoc(); docid++) {
+      if (liveDocs != null && !liveDocs.get(docid))
+	continue;
+
+      Terms vector = this.reader.getTermVector(docid, field);
+      if (vector == null)
+	continue;
+      hasVectors = true;
+
+      TermsEnum termsEnum = vector.iterator(null);
+      BytesRef term;
+      int n = 0;
+
+      while ((term = termsEnum.next()) != null) {
+	if (n == scores.length)
+	  scores = Arrays.copyOf(scores, n * 2);
+	scores[n++] = klScore(field, docid, (int) termsEnum.totalTermFreq(),
+			      collectionProb(field, collection, term));
+      }
+
+      if (n == 0)
+	continue;
+      Arrays.sort(scores, 0, n);
+      int keep = Math.max(1, (int) Math.ceil(this.ratio * n));
+      thresholds[docid] = scores[n - keep];
+    }
+
+    if (!hasVectors)
+      QryEval.fatalError("Error: document-centric pruning needs term " +
+			 "vectors for the " + field + " field.");
+
+    this.docThresholds.put(field, thresholds);
+  }
+
+  private double collectionProb(String field, TermsEnum collection, BytesRef term)
+    throws IOException {
+
+    String key = field + ":" + term.utf8ToString();
+    Double p = this.collectionProbs.get(key);
+
+    if (p == null) {
+      collection.seekExact(term, true);
+      p = collection.totalTermFreq() /
+	(double) this.reader.getSumTotalTermFreq(field);
+      this.collectionProbs.put(key, p);
+    }
+
+    return p;
+  }
+
+  /**
+   *  The contribution of a term to the KL divergence of a document's
+   *  language model from the collection language model.
+   */
+  private double klScore(String field, int docid, int tf, double pc)
+    throws IOException {
+    long doclen = Math.max(1, QryEval.docLenStore.getDocLength(field, docid));
+    double pd = tf / (double) doclen;
+    return pd * Math.log(pd / pc);
+  }
+
+  /**
+   *  The BM25 tf weight of a posting.  The idf of a term is the same
+   *  for all of its postings, so term-centric pruning ignores it.
+   */
+  private double tfWeight(String field, double avg_doclen, int docid, int tf)
+    throws IOException {
+    long doclen = QryEval.docLenStore.getDocLength(field, docid);
+    return tf / (tf + this.k_1 * ((1 - this.b) + this.b * doclen / avg_doclen));
+  }
+
+  /**
+   *  Decides which postings of the current term are kept.
+   */
+  private class PostingFilter {
+    private String field;
+    private double avg_doclen;		// term-centric
+    private double threshold = 0;
+    private double pc;			// document-centric
+
+    private PostingFilter(String field, TermsEnum termsEnum) throws IOException {
+      this.field = field;
+
+      if (method.equals("document")) {
+	this.pc = termsEnum.totalTermFreq() /
+	  (double) reader.getSumTotalTermFreq(field);
+	return;
+      }
+
+      this.avg_doclen = avgDoclens.get(field);
+      if (termsEnum.docFreq() <= topK)
+	return;
+
+      //  Find the topK'th largest tf weight with a min-heap.
+
+      double[] heap = new double[topK];
+      int size = 0;
+      DocsEnum docs = termsEnum.docs(null, null, DocsEnum.FLAG_FREQS);
+
+      while (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+	double w = tfWeight(field, this.avg_doclen, docs.docID(), docs.freq());
+	if (size < topK) {
+	  heap[size++] = w;
+	  if (size == topK)
+	    for (int i = topK / 2 - 1; i >= 0; i--)
+	      siftDown(heap, i, topK);
+	} else if (w > heap[0]) {
+	  heap[0] = w;
+	  siftDown(heap, 0, topK);
+	}
+      }
+
+      if (size == topK)
+	this.threshold = epsilon * heap[0];
+    }
+
+    private boolean keep(int docid, int tf) throws IOException {
+      if (method.equals("document"))
+	return klScore(this.field, docid, tf, this.pc) >=
+	  docThresholds.get(this.field)[docid];
+      return tfWeight(this.field, this.avg_doclen, docid, tf) >= this.threshold;
+    }
+  }
+
+  /**
+   *  Restore the min-heap order of heap[0..n) below position i.
+   */
+  private static void siftDown(double[] heap, int i, int n) {
+    double x = heap[i];
+    int child;
+
+    while ((child = 2 * i + 1) < n) {
+      if (child + 1 < n && heap[child + 1] < heap[child])
+	child++;
+      if (heap[child] >= x)
+	break;
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = x;
+  }
+
+  //  The reader that addIndexes copies.  It hides the pruned postings
+  //  of the pruned fields; everything else is passed through.
+
+  private class PrunedReader extends FilterAtomicReader {
+
+    private PrunedReader(AtomicReader in) {
+      super(in);
+    }
+
+    @Override
+    public Fields fields() throws IOException {
+      return new FilterFields(super.fields()) {
+	@Override
+	public Terms terms(String field) throws IOException {
+	  Terms terms = super.terms(field);
+	  if (terms == null || !fields.contains(field))
+	    return terms;
+	  return new PrunedTerms(field, terms);
+	}
+      };
+    }
+  }
+
+  private class PrunedTerms extends FilterAtomicReader.FilterTerms {
+    private String field;
+
+    private PrunedTerms(String field, Terms in) {
+      super(in);
+      this.field = field;
+    }
+
+    @Override
+    public TermsEnum iterator(TermsEnum reuse) throws IOException {
+      return new PrunedTermsEnum(this.field, this.in.iterator(null));
+    }
+  }
+
+  private class PrunedTermsEnum extends FilterAtomicReader.FilterTermsEnum {
+    private String field;
+
+    //  The filter of the current term.  addIndexes asks for the docs
+    //  and the positions of a term, so the filter is built once.
+
+    private BytesRef filterTerm = null;
+    private PostingFilter filter = null;
+
+    private PrunedTermsEnum(String field, TermsEnum in) {
+      super(in);
+      this.field = field;
+    }
+
+    private PostingFilter filter() throws IOException {
+      BytesRef term = this.in.term();
+      if (this.filter == null || !term.equals(this.filterTerm)) {
+	this.filter = new PostingFilter(this.field, this.in);
+	this.filterTerm = BytesRef.deepCopyOf(term);
+      }
+      return this.filter;
+    }
+
+    @Override
+    public DocsEnum docs(Bits liveDocs, DocsEnum reuse, int flags)
+      throws IOException {
+      return new PrunedDocsEnum(this.in.docs(liveDocs, null, DocsEnum.FLAG_FREQS),
+				filter());
+    }
+
+    @Override
+    public DocsAndPositionsEnum docsAndPositions(Bits liveDocs,
+						 DocsAndPositionsEnum reuse,
+						 int flags) throws IOException {
+      DocsAndPositionsEnum positions =
+	this.in.docsAndPositions(liveDocs, null, flags);
+      if (positions == null)
+	return null;
+      return new PrunedPositionsEnum(positions, filter());
+    }
+  }
+
+  private static class PrunedDocsEnum extends FilterAtomicReader.FilterDocsEnum {
+    private PostingFilter filter;
+
+    private PrunedDocsEnum(DocsEnum in, PostingFilter filter) {
+      super(in);
+      this.filter = filter;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      int doc;
+      while ((doc = this.in.nextDoc()) != NO_MORE_DOCS &&
+	     !this.filter.keep(doc, this.in.freq()))
+	;
+      return doc;
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      int doc = this.in.advance(target);
+      if (doc != NO_MORE_DOCS && !this.filter.keep(doc, this.in.freq()))
+	doc = nextDoc();
+      return doc;
+    }
+  }
+
+  private static class PrunedPositionsEnum
+    extends FilterAtomicReader.FilterDocsAndPositionsEnum {
+    private PostingFilter filter;
+
+    private PrunedPositionsEnum(DocsAndPositionsEnum in, PostingFilter filter) {
+      super(in);
+      this.filter = filter;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      int doc;
+      while ((doc = this.in.nextDoc()) != NO_MORE_DOCS &&
+	     !this.filter.keep(doc, this.in.freq()))
+	;
+      return doc;
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      int doc = this.in.advance(target);
+      if (doc != NO_MORE_DOCS && !this.filter.keep(doc, this.in.freq()))
+	doc = nextDoc();
+      return doc;
+    }
+  }
+
+  /**
+   *  Run the queries on the original and the pruned index and report
+   *  the differences.
+   */
+  private static void compareRetrieval(Map<String, String> params,
+				       String prunedPath) throws Exception {
+
+    RetrievalModel model = QryEval.createRetrievalModel(params);
+    int depth = params.containsKey("pruneReportDepth") ?
+      Integer.parseInt(params.get("pruneReportDepth")) : 100;
+    Map<String, Set<String>> qrels = params.containsKey("pruneQrelsFile") ?
+      readQrels(params.get("pruneQrelsFile")) : null;
+    String queryFile = params.get("queryFilePath");
+
+    //  The first run warms up the JVM and is not timed.
+
+    long[] time = new long[2];
+    runQueries(queryFile, model, depth, time);
+    Map<String, List<String>> original = runQueries(queryFile, model, depth, time);
+    long originalTime = time[0];
+
+    QryEval.READER.close();
+    openIndex(prunedPath);
+    runQueries(queryFile, model, depth, time);
+    Map<String, List<String>> pruned = runQueries(queryFile, model, depth, time);
+    long prunedTime = time[0];
+
+    double overlap10 = 0, overlapDepth = 0;
+    double[] p10 = new double[2], ap = new double[2];
+
+    for (String qid : original.keySet()) {
+      List<String> a = original.get(qid), b = pruned.get(qid);
+      overlap10 += overlap(a, b, 10);
+      overlapDepth += overlap(a, b, depth);
+
+      if (qrels != null) {
+	Set<String> relevant = qrels.containsKey(qid) ?
+	  qrels.get(qid) : new HashSet<String>();
+	p10[0] += precision(a, relevant, 10);
+	p10[1] += precision(b, relevant, 10);
+	ap[0] += averagePrecision(a, relevant);
+	ap[1] += averagePrecision(b, relevant);
+      }
+    }
+
+    int n = Math.max(1, original.size());
+    System.out.println("Queries: " + original.size());
+    System.out.println("Query time: " + originalTime / 1000000.0 + " -> " +
+		       prunedTime / 1000000.0 + " ms");
+    System.out.printf("Overlap@10: %.4f%n", overlap10 / n);
+    System.out.printf("Overlap@%d: %.4f%n", depth, overlapDepth / n);
+    if (qrels != null) {
+      System.out.printf("P@10: %.4f -> %.4f%n", p10[0] / n, p10[1] / n);
+      System.out.printf("MAP: %.4f -> %.4f%n", ap[0] / n, ap[1] / n);
+    }
+  }
+
+  /**
+   *  Run every query in a query file.
+   *  @return The top depth external document ids of each query.
+   */
+  private static Map<String, List<String>> runQueries(String queryFile,
+						      RetrievalModel model,
+						      int depth, long[] time)
+    throws Exception {
+
+    Map<String, List<String>> rankings = new LinkedHashMap<String, List<String>>();
+    BufferedReader br = new BufferedReader(new FileReader(queryFile));
+    String line;
+    time[0] = 0;
+
+    while ((line = br.readLine()) != null) {
+      String[] query = line.trim().split(":");
+      long start = System.nanoTime();
+      Qryop qTree = QryEval.parseQuery(query[1], model);
+      QryResult result = QryEval.evaluateQuery(qTree, model);
+      List<String> sorted = QryEval.sortedResult(result);
+      time[0] += System.nanoTime() - start;
+
+      List<String> ranking = new ArrayList<String>();
+      if (sorted != null)
+	for (int i = 0; i < Math.min(depth, sorted.size()); i++)
+	  ranking.add(sorted.get(i).split(":")[0]);
+      rankings.put(query[0], ranking);
+    }
+
+    br.close();
+    return rankings;
+  }
+
+  private static Map<String, Set<String>> readQrels(String path)
+    throws IOException {
+
+    Map<String, Set<String>> qrels = new HashMap<String, Set<String>>();
+    BufferedReader br = new BufferedReader(new FileReader(path));
+    String line;
+
+    while ((line = br.readLine()) != null) {
+      String[] parts = line.trim().split("\\s+");
+      if (parts.length < 4 || Integer.parseInt(parts[3]) <= 0)
+	continue;
+      if (!qrels.containsKey(parts[0]))
+	qrels.put(parts[0], new HashSet<String>());
+      qrels.get(parts[0]).add(parts[2]);
+    }
+
+    br.close();
+    return qrels;
+  }
+
+  private static double overlap(List<String> a, List<String> b, int k) {
+    Set<String> top = new HashSet<String>(a.subList(0, Math.min(k, a.size())));
+    int both = 0;
+    for (String doc : b.subList(0, Math.min(k, b.size())))
+      if (top.contains(doc))
+	both++;
+    return (top.isEmpty()) ? 1.0 : both / (double) top.size();
+  }
+
+  private static double precision(List<String> ranking, Set<String> relevant,
+				  int k) {
+    int hits = 0;
+    for (String doc : ranking.subList(0, Math.min(k, ranking.size())))
+      if (relevant.contains(doc))
+	hits++;
+    return hits / (double) k;
+  }
+
+  private static double averagePrecision(List<String> ranking,
+					 Set<String> relevant) {
+    if (relevant.isEmpty())
+      return 0;
+    double sum = 0;
+    int hits = 0;
+    for (int i = 0; i < ranking.size(); i++)
+      if (relevant.contains(ranking.get(i)))
+	sum += ++hits / (double) (i + 1);
+    return sum / relevant.size();
+  }
+
+  private static long directorySize(String path) throws IOException {
+    Directory dir = FSDirectory.open(new File(path));
+    long size = 0;
+    for (String file : dir.listAll())
+      size += dir.fileLength(file);
+    dir.close();
+    return size;
+  }
+
+  private static long postingsCount(IndexReader reader, String field)
+    throws IOException {
+    Terms terms = MultiFields.getTerms(reader, field);
+    return (terms == null) ? 0 : terms.getSumDocFreq();
+  }
+}
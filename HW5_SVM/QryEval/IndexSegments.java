@@ -0,0 +1,176 @@
+/**
+ *  This class provides per-segment access to the index.  A Lucene
+ *  index usually has several segments (AtomicReader leaves).  Going
+ *  through MultiFields on the composite reader merges the segments on
+ *  every call; this class instead visits the leaves directly and maps
+ *  segment docids to index docids with each leaf's docBase.
+ *
+ *  The TermsEnum and DocsAndPositionsEnum of each (field, segment)
+ *  are cached and reused by every term lookup, so fetching an
+ *  inverted list only seeks the cached enums.  Query evaluation is
+ *  single-threaded, so one instance (QryEval.segments) is shared.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.*;
+
+public class IndexSegments {
+
+  //  The cached enums of one field, one entry per segment.
+
+  private class FieldEnums {
+    TermsEnum[] terms = new TermsEnum[leaves.size()];
+    DocsEnum[] docs = new DocsEnum[leaves.size()];
+    DocsAndPositionsEnum[] positions = new DocsAndPositionsEnum[leaves.size()];
+    boolean[] absent = new boolean[leaves.size()];
+  }
+
+  private List<AtomicReaderContext> leaves;
+  private int[] docStarts;
+  private Map<String, FieldEnums> fieldEnums = new HashMap<String, FieldEnums>();
+
+  /**
+   *  @param reader IndexReader object created in {@link QryEval}.
+   */
+  public IndexSegments(IndexReader reader) {
+    this.leaves = reader.leaves();
+    this.docStarts = new int[this.leaves.size()];
+
+    for (int i = 0; i < this.leaves.size(); i++)
+      this.docStarts[i] = this.leaves.get(i).docBase;
+  }
+
+  /**
+   *  The number of segments in the index.
+   *  @return The number of segments.
+   */
+  public int size() {
+    return this.leaves.size();
+  }
+
+  /**
+   *  The index docid of the first document in a segment.  Add it to a
+   *  segment docid to get the index docid.
+   *  @param leaf The index of the segment.
+   *  @return The docBase of the segment.
+   */
+  public int docBase(int leaf) {
+    return this.docStarts[leaf];
+  }
+
+  /**
+   *  The segment that contains a document.
+   *  @param docid An internal document id.
+   *  @return The index of the segment.
+   */
+  public int leafOf(int docid) {
+    return ReaderUtil.subIndex(docid, this.docStarts);
+  }
+
+  /**
+   *  The reader of a segment.
+   *  @param leaf The index of the segment.
+   *  @return The segment's reader.
+   */
+  public AtomicReader reader(int leaf) {
+    return this.leaves.get(leaf).reader();
+  }
+
+  /**
+   *  Position the cached TermsEnum of a (field, segment) on a term.
+   *  @param leaf The index of the segment.
+   *  @param field The field that the term occurs in.
+   *  @param term The processed term.
+   *  @return The positioned TermsEnum, or null if the segment does not
+   *  contain the term.
+   *  @throws IOException
+   */
+  public TermsEnum seekTerm(int leaf, String field, BytesRef term)
+    throws IOException {
+
+    FieldEnums enums = getFieldEnums(field);
+
+    if (enums.absent[leaf])
+      return null;
+
+    if (enums.terms[leaf] == null) {
+      Terms terms = reader(leaf).terms(field);
+      if (terms == null) {
+	enums.absent[leaf] = true;
+	return null;
+      }
+      enums.terms[leaf] = terms.iterator(null);
+    }
+
+    if (! enums.terms[leaf].seekExact(term, true))
+      return null;
+
+    return enums.terms[leaf];
+  }
+
+  /**
+   *  Get the postings of a term in one segment, with frequencies but
+   *  without positions.  The enum is reused by the next call for the
+   *  same field and segment, so consume it first.  Deleted documents
+   *  are skipped.
+   *  @param leaf The index of the segment.
+   *  @param field The field that the term occurs in.
+   *  @param term The processed term.
+   *  @return The postings, with segment docids, or null if the
+   *  segment does not contain the term.
+   *  @throws IOException
+   */
+  public DocsEnum docs(int leaf, String field, BytesRef term)
+    throws IOException {
+
+    TermsEnum termsEnum = seekTerm(leaf, field, term);
+
+    if (termsEnum == null)
+      return null;
+
+    FieldEnums enums = getFieldEnums(field);
+    enums.docs[leaf] = termsEnum.docs(reader(leaf).getLiveDocs(),
+				      enums.docs[leaf], DocsEnum.FLAG_FREQS);
+    return enums.docs[leaf];
+  }
+
+  /**
+   *  Get the postings of a term in one segment, with positions.  The
+   *  enum is reused by the next call for the same field and segment,
+   *  so consume it first.  Deleted documents are skipped.
+   *  @param leaf The index of the segment.
+   *  @param field The field that the term occurs in.
+   *  @param term The processed term.
+   *  @return The postings, with segment docids, or null if the
+   *  segment does not contain the term.
+   *  @throws IOException
+   */
+  public DocsAndPositionsEnum positions(int leaf, String field, BytesRef term)
+    throws IOException {
+
+    TermsEnum termsEnum = seekTerm(leaf, field, term);
+
+    if (termsEnum == null)
+      return null;
+
+    FieldEnums enums = getFieldEnums(field);
+    enums.positions[leaf] =
+      termsEnum.docsAndPositions(reader(leaf).getLiveDocs(),
+				 enums.positions[leaf]);
+    return enums.positions[leaf];
+  }
+
+  private FieldEnums getFieldEnums(String field) {
+    FieldEnums enums = this.fieldEnums.get(field);
+
+    if (enums == null) {
+      enums = new FieldEnums();
+      this.fieldEnums.put(field, enums);
+    }
+
+    return enums;
+  }
+}
@@ -22,23 +22,27 @@ public class InvList {
 
     public int docid = 0;
     public int tf = 0;
-    public Vector<Integer> positions = new Vector<Integer>();
+    public int[] positions;
 
     public DocPosting(int d, int... locations) {
       this.docid = d;
       this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
+      this.positions = locations;
     }
 
     public DocPosting(int d, List<Integer> locations) {
       this.docid = d;
       this.tf = locations.size();
+      this.positions = new int[this.tf];
       for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
+        this.positions[i] = locations.get(i);
     }
   }
 
+  //  The positions of postings read without positions.
+
+  private static final int[] NO_POSITIONS = new int[0];
+
   //  Class variables.
 
   public int ctf = 0;
@@ -66,6 +70,22 @@ public class InvList {
    *  @throws IOException
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this(termString, fieldString, true);
+  }
+
+  /**
+   *  Fetch an inverted list from the index, optionally without
+   *  positions.  Without positions only docids and tfs are read, which
+   *  is all that score operators use; the postings then have no
+   *  positions, so the list must not be given to #NEAR, #WINDOW or
+   *  #SYN.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param readPositions Whether to read the positions.
+   *  @throws IOException
+   */
+  public InvList(String termString, String fieldString, boolean readPositions)
+    throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
@@ -74,34 +94,56 @@ public class InvList {
     //  Prepare to access the index.
 
     BytesRef termBytes = new BytesRef(termString);
-    Term term = new Term(fieldString, termBytes);
+    IndexSegments segments = QryEval.segments;
+
+    //  Lookup the inverted list in each segment.  Segments are in
+    //  docid order, so appending them in turn keeps the list sorted.
 
-    if (QryEval.READER.docFreq(term) < 1)
-      return;
+    for (int leaf = 0; leaf < segments.size(); leaf++) {
 
-    //  Lookup the inverted list.
+      if (! readPositions) {
+	DocsEnum dList = segments.docs(leaf, fieldString, termBytes);
 
-    DocsAndPositionsEnum iList =
-      MultiFields.getTermPositionsEnum(QryEval.READER,
-				       MultiFields.getLiveDocs(QryEval.READER),
-				       fieldString, termBytes);
+	if (dList == null)
+	  continue;
+
+	int docBase = segments.docBase(leaf);
+
+	while (dList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+	  DocPosting p = new DocPosting(docBase + dList.docID(), NO_POSITIONS);
+	  p.tf = dList.freq();
+	  this.postings.add(p);
+	  this.df++;
+	  this.ctf += p.tf;
+	}
+	continue;
+      }
 
-    //  Copy from Lucene inverted list format to our inverted list
-    //  format. This is a little inefficient, but allows query
-    //  operators such as #SYN and #NEAR/n to be insulated from the
-    //  details of Lucene inverted list implementations.
+      DocsAndPositionsEnum iList =
+	segments.positions(leaf, fieldString, termBytes);
 
-    while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+      if (iList == null)
+	continue;
 
-      int tf = iList.freq();
-      int[] positions = new int[tf];
+      int docBase = segments.docBase(leaf);
 
-      for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+      //  Copy from Lucene inverted list format to our inverted list
+      //  format. This is a little inefficient, but allows query
+      //  operators such as #SYN and #NEAR/n to be insulated from the
+      //  details of Lucene inverted list implementations.
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
-      this.df++;
-      this.ctf += tf;
+      while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+
+	int tf = iList.freq();
+	int[] positions = new int[tf];
+
+	for (int j = 0; j < tf; j++)
+	  positions[j] = iList.nextPosition();
+
+	this.postings.add(new DocPosting(docBase + iList.docID(), positions));
+	this.df++;
+	this.ctf += tf;
+      }
     }
   }
 
@@ -129,6 +171,63 @@ public class InvList {
     return true;
   }
 
+  /**
+   *  Append a posting to the posting list.  The first length entries
+   *  of positions are copied, so the caller may reuse the array as a
+   *  scratch buffer.  Posting must be appended in docid order,
+   *  otherwise this method fails.
+   *  @param docid The posting internal document id.
+   *  @param positions An array of positions where the term occurs.
+   *  @param length The number of valid entries in positions.
+   *  @result true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int[] positions, int length) {
+
+    if ((this.df > 0) &&
+	(this.postings.get(this.df-1).docid >= docid))
+      return false;
+
+    DocPosting p = new DocPosting (docid, Arrays.copyOf (positions, length));
+
+    this.postings.add (p);
+    this.df ++;
+    this.ctf += p.tf;
+    return true;
+  }
+
+  /**
+   *  Append a posting without positions, like the postings of a list
+   *  read without positions.  Posting must be appended in docid order,
+   *  otherwise this method fails.
+   *  @param docid The posting internal document id.
+   *  @param tf The term frequency in the document.
+   *  @result true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int tf) {
+
+    if ((this.df > 0) &&
+	(this.postings.get(this.df-1).docid >= docid))
+      return false;
+
+    DocPosting p = new DocPosting (docid, NO_POSITIONS);
+    p.tf = tf;
+
+    this.postings.add (p);
+    this.df ++;
+    this.ctf += p.tf;
+    return true;
+  }
+
+  /**
+   *  Get the positions of the n'th document in the inverted list.
+   *  The returned array is shared with the posting; do not modify it.
+   *  @param n The index of the requested document.
+   *  @return The term positions, in increasing order.
+   */
+  public int[] getPositions(int n) {
+    return this.postings.get(n).positions;
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
    *  @param n The index of the requested document.
@@ -158,8 +257,8 @@ public class InvList {
       System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
           + this.postings.elementAt(i).tf + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < this.postings.elementAt(i).positions.length; j++) {
+        System.out.print(this.postings.elementAt(i).positions[j] + " ");
       }
 
       System.out.println();
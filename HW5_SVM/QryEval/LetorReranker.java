@@ -0,0 +1,113 @@
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.*;
+
+/**
+ * Reranks the first-stage ranking of one query at a time with the LeToR
+ * model: the features of the top documents are computed in memory,
+ * scored with the svm_rank model's weights and sorted, while the query's
+ * time budget runs. Nothing is written to or read from intermediate files,
+ * so queries can be reranked as they arrive.
+ *
+ * If the query runs out of time before its features are computed, the
+ * first-stage ranking is returned unchanged.
+ *
+ * The test features can be exported in the svm_rank text format
+ * (letor:testingFeatureVectorsFile); the binary feature matrix
+ * (letor:testingFeatureMatrixFile) is only written by the batch path.
+ */
+public class LetorReranker {
+	private RetrievalModelLetor model;
+	private FeatureVector fv;
+	private LinearRanker ranker;
+	private int depth;
+	private BufferedWriter featureWriter;	// optional svm_rank export
+
+	/**
+	 * Load the model weights.
+	 *
+	 * @param fv
+	 *            Holds the stems of the queries that will be reranked.
+	 */
+	public LetorReranker(RetrievalModelLetor model, FeatureVector fv)
+			throws IOException {
+		this.model = model;
+		this.fv = fv;
+		this.ranker = new LinearRanker(model.svmRankModelFile,
+				fv.getFeatureNum());
+		this.depth = model.rerankDepth;
+		if (model.testingFeatureVectorsFile != null) {
+			featureWriter = new BufferedWriter(new FileWriter(
+					model.testingFeatureVectorsFile));
+		}
+		if (model.testingFeatureMatrixFile != null) {
+			System.err.println("Warning: letor:testingFeatureMatrixFile is "
+					+ "ignored when queries are reranked as they are retrieved.");
+		}
+	}
+
+	/**
+	 * Rerank the top documents of a query.
+	 *
+	 * @param sResult
+	 *            The first-stage ranking, as external_id:score:docid
+	 *            strings.
+	 * @return The reranked top documents as external_id:score strings, the
+	 *         first-stage ranking if the query ran out of time, or null if
+	 *         there is nothing to rerank.
+	 */
+	public List<String> rerank(int qid, List<String> sResult) throws Exception {
+		if (sResult == null || sResult.isEmpty() || !fv.hasQuery(qid)) {
+			return null;
+		}
+		if (QueryDeadline.hasExpired()) {
+			return sResult;
+		}
+
+		final FeatureMatrix matrix = fv.constructQueryFeatureVectors(model,
+				qid, sResult, depth);
+		if (matrix == null) {
+			return sResult;
+		}
+		if (featureWriter != null) {
+			matrix.writeSvmRank(featureWriter, true);
+		}
+
+		// the precision and rounding of svm_rank_classify's "%.8f"
+		double[] raw = ranker.score(matrix);
+		final BigDecimal[] scores = new BigDecimal[matrix.rows];
+		Integer[] order = new Integer[matrix.rows];
+		for (int row = 0; row < matrix.rows; row++) {
+			scores[row] = new BigDecimal(raw[row]).setScale(8,
+					RoundingMode.HALF_EVEN);
+			order[row] = row;
+		}
+
+		// by score, then by external id, as ValueComparator orders them
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int cmp = scores[b].compareTo(scores[a]);
+				return (cmp != 0) ? cmp : matrix.extids[a]
+						.compareTo(matrix.extids[b]);
+			}
+		});
+
+		List<String> reranked = new ArrayList<String>(matrix.rows);
+		for (int row : order) {
+			reranked.add(matrix.extids[row] + ":"
+					+ scores[row].toPlainString());
+		}
+		return reranked;
+	}
+
+	/**
+	 * Close the feature export and stop the feature workers.
+	 */
+	public void close() throws IOException {
+		if (featureWriter != null) {
+			featureWriter.close();
+		}
+		fv.close();
+	}
+}
@@ -2,25 +2,94 @@ import java.io.IOException;
 import java.util.*;
 
 import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
 
+/**
+ * Computes the term-based LeToR features of one field of one document. The
+ * tfs of the query stems are read once, from the forward index when it has
+ * the field, otherwise from the document's term vector, and are shared by
+ * all of the features.
+ */
 public class LetorScoreFromTermVector {
 	private List<String> qstems;
+	private BytesRef[] qstemBytes;	// the query stems as index bytes
 	private int docId;
 	private RetrievalModelLetor model;
 	private String field;
-	private TermVector tv;
+	private boolean hasField;
+	private int[] tfs;		// tf of each query stem, 0 if absent
+	private int[] termIds;		// forward index term ids, or null
 
+	/**
+	 * Read the tfs of the query stems in a field of a document.
+	 * 
+	 * @param qstemBytes
+	 *            The query stems as index bytes, converted once per query.
+	 * @param termIds
+	 *            The forward index term ids of the query stems in the field,
+	 *            resolved once per query, or null to read the term vector.
+	 * @return The scorer. If the document does not have the field, hasField
+	 *         is false and no features should be computed.
+	 */
+	public static LetorScoreFromTermVector create(RetrievalModelLetor model,
+			String field, List<String> qstems, BytesRef[] qstemBytes,
+			int[] termIds, int docId) throws IOException {
+		if (termIds == null) {
+			return new LetorScoreFromTermVector(model, field, qstems,
+					qstemBytes, docId, TermVector.read(docId, field));
+		}
+
+		ForwardIndex index = QryEval.forwardIndex;
+		LetorScoreFromTermVector scorer = new LetorScoreFromTermVector(model,
+				field, qstems, qstemBytes, docId, null);
+		scorer.termIds = termIds;
+		scorer.hasField = index.termFreqs(docId, index.fieldNumber(field),
+				termIds, scorer.tfs);
+		return scorer;
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param tv
+	 *            The term vector of the field in the document, or null if
+	 *            the document does not have the field.
+	 */
 	public LetorScoreFromTermVector(RetrievalModelLetor model, String field,
-			List<String> qstems, int docId) throws IOException {
+			List<String> qstems, BytesRef[] qstemBytes, int docId,
+			TermVector tv) {
 		this.model = model;
 		this.field = field;
 		this.qstems = qstems;
+		this.qstemBytes = qstemBytes;
 		this.docId = docId;
-		if (QryEval.READER.getTermVector(docId, field) == null) {
-			this.tv = null;
-		} else {
-			this.tv = new TermVector(docId, field);
+		this.hasField = (tv != null);
+		this.tfs = new int[qstems.size()];
+
+		for (int q = 0; tv != null && q < qstems.size(); q++) {
+			int index = tv.getIndex(qstemBytes[q]);
+			this.tfs[q] = (index == -1) ? 0 : tv.stemFreq(index);
+		}
+	}
+
+	/**
+	 * The df of the q'th query stem in the field.
+	 */
+	private int df(int q) throws IOException {
+		if (termIds != null) {
+			return (termIds[q] == -1) ? 0 : QryEval.forwardIndex.df(termIds[q]);
+		}
+		return QryEval.READER.docFreq(new Term(field, qstemBytes[q]));
+	}
+
+	/**
+	 * The ctf of the q'th query stem in the field.
+	 */
+	private long ctf(int q) throws IOException {
+		if (termIds != null) {
+			return (termIds[q] == -1) ? 0 : QryEval.forwardIndex.ctf(termIds[q]);
 		}
+		return QryEval.READER.totalTermFreq(new Term(field, qstemBytes[q]));
 	}
 
 	public double getBM25Score() throws IOException {
@@ -38,13 +107,12 @@ public class LetorScoreFromTermVector {
 		DocLengthStore doclengthStore = QryEval.docLenStore;
 		long doclen = doclengthStore.getDocLength(field, docId);
 
-		for (String stem : qstems) {
-			int index = tv.getIndex(stem);
-			if (index == -1)
+		for (int q = 0; q < qstems.size(); q++) {
+			if (tfs[q] == 0)
 				continue;
 
-			int tf = tv.stemFreq(index);
-			int df = tv.stemDf(index);
+			int tf = tfs[q];
+			int df = df(q);
 			int qtf = 1;
 			double idf, tf_weight, user_weight;
 			idf = Math.max(0, Math.log((N - df + 0.5) / (df + 0.5)));
@@ -67,20 +135,19 @@ public class LetorScoreFromTermVector {
 		DocLengthStore doclengthStore = QryEval.docLenStore;
 		long doclen = doclengthStore.getDocLength(field, docId);
 
-		for (String stem : qstems) {
-			int index = tv.getIndex(stem);
+		for (int q = 0; q < qstems.size(); q++) {
 			int tf;
 			long ctf;
 
-			if (index == -1) {
+			if (tfs[q] == 0) {
 				// if the term is not in the document
 				tf = 0;
-				ctf = QryEval.READER.totalTermFreq(new Term(field, stem));
+				ctf = ctf(q);
 			} else {
 				// the term is in the document
 				isMatch = true;
-				tf = tv.stemFreq(index);
-				ctf = tv.totalStemFreq(index);
+				tf = tfs[q];
+				ctf = ctf(q);
 			}
 			double mleProb = ctf
 					/ (double) QryEval.READER.getSumTotalTermFreq(field);
@@ -96,12 +163,11 @@ public class LetorScoreFromTermVector {
 		double totalScore = 0;
 		int N = QryEval.READER.numDocs();
 		
-		for (String stem : qstems) {
-			int index = tv.getIndex(stem);
-			if (index == -1) continue;
+		for (int q = 0; q < qstems.size(); q++) {
+			if (tfs[q] == 0) continue;
 			
-			int tf = tv.stemFreq(index);
-			int df = tv.stemDf(index);
+			int tf = tfs[q];
+			int df = df(q);
 			double idf = Math.max(0, Math.log((N - df + 0.5) / (df + 0.5)));
 			totalScore += tf * idf;
 		}
@@ -110,9 +176,8 @@ public class LetorScoreFromTermVector {
 	}
 	
 	public double getBooleanScore() {
-		for (String stem : qstems) {
-			int index = tv.getIndex(stem);
-			if (index == -1) {
+		for (int q = 0; q < qstems.size(); q++) {
+			if (tfs[q] == 0) {
 				return 0;
 			}
 		}
@@ -122,9 +187,8 @@ public class LetorScoreFromTermVector {
 	public double getTermoverlapScore() throws IOException {
 		double totalScore = 0;
 		int totalMatch = 0;
-		for (String stem : qstems) {
-			int index = tv.getIndex(stem);
-			if (index != -1) {
+		for (int q = 0; q < qstems.size(); q++) {
+			if (tfs[q] != 0) {
 				totalMatch++;
 			}
 		}
@@ -135,7 +199,7 @@ public class LetorScoreFromTermVector {
 		return totalScore;
 	}
 
-	public TermVector getTv() {
-		return this.tv;
+	public boolean hasField() {
+		return this.hasField;
 	}
 }
@@ -0,0 +1,65 @@
+import java.io.*;
+import java.nio.DoubleBuffer;
+
+/**
+ * Scores feature vectors with the weights of a linear svm_rank model, in
+ * the JVM, so the test vectors do not have to be written out, classified
+ * by svm_rank_classify and read back. The weights are read once from the
+ * model file; a document's score is the dot product of its normalized
+ * feature vector with the weights, as in svm_rank_classify.
+ */
+public class LinearRanker {
+	private double[] weights;	// indexed by feature index - 1
+
+	/**
+	 * Read the weights of a linear svm_rank model file. They are on the
+	 * last line, the only support vector: "alpha*y index:weight ... #".
+	 */
+	public LinearRanker(String modelFile, int featureNum) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(modelFile));
+		String line, sv = null;
+		while ((line = reader.readLine()) != null) {
+			if (line.trim().length() > 0) {
+				sv = line;
+			}
+		}
+		reader.close();
+		if (sv == null) {
+			throw new IOException("Empty svm_rank model file: " + modelFile);
+		}
+
+		weights = new double[featureNum];
+		String[] words = sv.split("#")[0].trim().split("\\s+");
+		double alpha = Double.parseDouble(words[0]);
+		for (int i = 1; i < words.length; i++) {
+			int colon = words[i].indexOf(':');
+			int index = Integer.parseInt(words[i].substring(0, colon));
+			if (index >= 1 && index <= featureNum) {
+				weights[index - 1] = alpha
+						* Double.parseDouble(words[i].substring(colon + 1));
+			}
+		}
+	}
+
+	/**
+	 * Score all of the rows of a feature matrix.
+	 *
+	 * @return The score of each row.
+	 */
+	public double[] score(FeatureMatrix matrix) {
+		double[] scores = new double[matrix.rows];
+
+		// one weight at a time over the whole column; each row's sum is
+		// still accumulated in feature order, as svm_rank_classify does
+		for (int k = 0; k < weights.length && k < matrix.featureNum; k++) {
+			double w = weights[k];
+			if (w == 0)
+				continue;
+			DoubleBuffer column = matrix.columns[k];
+			for (int row = 0; row < matrix.rows; row++) {
+				scores[row] += w * column.get(row);
+			}
+		}
+		return scores;
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ *  This class implements the k-way merge shared by the union-style
+ *  query operators (#SYN, #SUM, #WAND, #WSUM, Indri #AND).  It keeps
+ *  the ArgPtrs of an operator in a min-heap ordered by the docid each
+ *  one currently points to, so finding the next document to examine
+ *  costs O(log args) instead of a scan over every argument.
+ *
+ *  Arguments that point to the same docid are popped in increasing
+ *  argument order, so operators that combine scores see them in the
+ *  same order as a left-to-right scan would.  A merge allocates all
+ *  of its space up front; nothing is allocated per document.
+ */
+
+import java.util.*;
+
+public class MergeHeap {
+
+  private Qryop.ArgPtr[] ptrs;
+  private int[] heap;		// Argument indexes, heap ordered
+  private int[] docids;		// The current docid of each argument
+  private int size = 0;
+
+  /**
+   *  Constructor.  Every argument that has a document left to examine
+   *  is added to the heap.
+   *  @param argPtrs The ArgPtrs of a query operator.  Each must have
+   *  either an inverted list or a score list.
+   */
+  public MergeHeap(List<Qryop.ArgPtr> argPtrs) {
+    this.ptrs = argPtrs.toArray(new Qryop.ArgPtr[argPtrs.size()]);
+    this.heap = new int[this.ptrs.length];
+    this.docids = new int[this.ptrs.length];
+
+    for (int i = 0; i < this.ptrs.length; i++)
+      push(i);
+  }
+
+  /**
+   *  The number of arguments that still have documents to examine.
+   *  @return The number of arguments in the heap.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   *  The smallest docid that any argument points to.  The heap must
+   *  not be empty.
+   *  @return An internal document id.
+   */
+  public int topDocid() {
+    return this.docids[this.heap[0]];
+  }
+
+  /**
+   *  Remove every argument that points to the smallest docid.  Their
+   *  nextDoc pointers are left unchanged, so the caller can read the
+   *  matching postings or scores before calling advance.
+   *  @param matched Receives the argument indexes, in increasing order.
+   *  Must be at least as long as the number of arguments.
+   *  @return The number of argument indexes written to matched.
+   */
+  public int popAll(int[] matched) {
+    int docid = topDocid();
+    int n = 0;
+
+    while (this.size > 0 && this.docids[this.heap[0]] == docid)
+      matched[n++] = pop();
+
+    return n;
+  }
+
+  /**
+   *  Move each of the given arguments to its next document and return
+   *  it to the heap, unless its list is exhausted.
+   *  @param matched Argument indexes previously returned by popAll.
+   *  @param n The number of valid entries in matched.
+   */
+  public void advance(int[] matched, int n) {
+    for (int k = 0; k < n; k++) {
+      this.ptrs[matched[k]].nextDoc++;
+      push(matched[k]);
+    }
+  }
+
+  /**
+   *  Add argument i to the heap if its list is not exhausted.
+   */
+  private void push(int i) {
+    Qryop.ArgPtr p = this.ptrs[i];
+
+    if (p.invList != null) {
+      if (p.nextDoc >= p.invList.df)
+        return;
+      this.docids[i] = p.invList.getDocid(p.nextDoc);
+    } else {
+      if (p.nextDoc >= p.scoreList.scores.size())
+        return;
+      this.docids[i] = p.scoreList.getDocid(p.nextDoc);
+    }
+
+    //  Sift up.
+
+    int slot = this.size++;
+    while (slot > 0) {
+      int parent = (slot - 1) / 2;
+      if (!less(i, this.heap[parent]))
+        break;
+      this.heap[slot] = this.heap[parent];
+      slot = parent;
+    }
+    this.heap[slot] = i;
+  }
+
+  /**
+   *  Remove and return the argument index at the top of the heap.
+   */
+  private int pop() {
+    int top = this.heap[0];
+    int x = this.heap[--this.size];
+    int slot = 0;
+
+    //  Sift the last entry down from the root.
+
+    while (true) {
+      int child = 2 * slot + 1;
+      if (child >= this.size)
+        break;
+      if (child + 1 < this.size && less(this.heap[child + 1], this.heap[child]))
+        child++;
+      if (!less(this.heap[child], x))
+        break;
+      this.heap[slot] = this.heap[child];
+      slot = child;
+    }
+    this.heap[slot] = x;
+
+    return top;
+  }
+
+  private boolean less(int a, int b) {
+    return this.docids[a] < this.docids[b] ||
+      (this.docids[a] == this.docids[b] && a < b);
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ *  This class holds a query-independent prior of every document, e.g.,
+ *  its PageRank score, indexed by internal docid, so a lookup is an
+ *  array access instead of a hash of the external id.  Documents that
+ *  have no prior hold the MISSING sentinel (NaN).
+ *
+ *  A store is loaded from either format:
+ *    text:    one "external_id <tab> score" line per document, e.g. the
+ *             LeToR pageRankFile.  The first score of an id is used, and
+ *             ids that are not in the index are skipped.
+ *    binary:  written by PriorStoreBuilder and memory-mapped, so large
+ *             collections need not convert external ids at startup.
+ *
+ *  Binary layout (DataOutputStream, big-endian):
+ *    header:  MAGIC, VERSION, maxDoc of the index it was built from
+ *    priors:  maxDoc doubles, in internal docid order
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+public class PriorStore {
+
+  public static final int MAGIC = 0x50524952;	// "PRIR"
+  public static final int VERSION = 1;
+  public static final double MISSING = Double.NaN;
+
+  private static final int HEADER = 12;
+
+  private DoubleBuffer priors;
+
+  private PriorStore(DoubleBuffer priors) {
+    this.priors = priors;
+  }
+
+  /**
+   *  Open a prior file in either format.
+   *  @param path A binary prior store or a text prior file.
+   *  @return The store.
+   *  @throws IOException
+   */
+  public static PriorStore open(String path) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(path));
+    int magic = (new File(path).length() >= HEADER) ? in.readInt() : 0;
+    in.close();
+
+    return (magic == MAGIC) ? map(path) : readText(path);
+  }
+
+  /**
+   *  Map a binary prior store.
+   */
+  private static PriorStore map(String path) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    MappedByteBuffer buffer = file.getChannel().map(
+      FileChannel.MapMode.READ_ONLY, 0, file.length());
+    file.close();
+
+    buffer.getInt();
+    if (buffer.getInt() != VERSION)
+      throw new IOException("Unsupported prior store version: " + path);
+    int maxDoc = buffer.getInt();
+    if (maxDoc != QryEval.READER.maxDoc())
+      throw new IOException("Prior store was built for another index: " + path);
+    if (buffer.remaining() < 8L * maxDoc)
+      throw new IOException("Truncated prior store: " + path);
+
+    return new PriorStore(buffer.asDoubleBuffer());
+  }
+
+  /**
+   *  Read a text prior file, converting the external ids of its lines
+   *  to internal docids.
+   */
+  static PriorStore readText(String path) throws IOException {
+    IndexReader reader = QryEval.READER;
+    double[] priors = new double[reader.maxDoc()];
+    java.util.Arrays.fill(priors, MISSING);
+
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+      new FileInputStream(path)));
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+    String line;
+
+    while ((line = in.readLine()) != null) {
+      String[] words = line.trim().split("\t");
+      if (words.length < 2)
+	continue;
+
+      DocsEnum docs = MultiFields.getTermDocsEnum(reader, liveDocs,
+	"externalId", new BytesRef(words[0]), DocsEnum.FLAG_NONE);
+      if (docs == null)
+	continue;
+      int docid = docs.nextDoc();
+      if (docid != DocIdSetIterator.NO_MORE_DOCS && Double.isNaN(priors[docid]))
+	priors[docid] = Double.parseDouble(words[1]);
+    }
+    in.close();
+
+    return new PriorStore(DoubleBuffer.wrap(priors));
+  }
+
+  /**
+   *  @param docid An internal document id.
+   *  @return The prior of the document, or MISSING.
+   */
+  public double get(int docid) {
+    return this.priors.get(docid);
+  }
+
+  /**
+   *  @return The number of documents, i.e., the maxDoc of the index.
+   */
+  public int size() {
+    return this.priors.capacity();
+  }
+
+  /**
+   *  Write the store in the binary format.
+   *  @param path The output file.
+   *  @throws IOException
+   */
+  public void write(String path) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+      new FileOutputStream(path)));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(size());
+    for (int docid = 0; docid < size(); docid++)
+      out.writeDouble(get(docid));
+    out.close();
+  }
+}
@@ -0,0 +1,54 @@
+/**
+ *  This class converts a text prior file, e.g., the LeToR pageRankFile,
+ *  to the binary PriorStore format.  It is run once per index, offline:
+ *
+ *    java PriorStoreBuilder parameterFile
+ *
+ *  The parameter file uses the QryEval format.  It needs indexPath,
+ *  letor:pageRankFile (the text file) and priorStorePath (the output).
+ *  The output can then be used as letor:pageRankFile.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.FSDirectory;
+
+public class PriorStoreBuilder {
+
+  /**
+   *  @param args The name of a parameter file.
+   *  @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      System.err.println("Usage:  java PriorStoreBuilder paramFile");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameters(args[0]);
+
+    if (!params.containsKey("indexPath") ||
+	!params.containsKey("letor:pageRankFile") ||
+	!params.containsKey("priorStorePath"))
+      QryEval.fatalError("Error: indexPath, letor:pageRankFile and " +
+			 "priorStorePath are required.");
+
+    QryEval.READER = DirectoryReader.open(FSDirectory.open(new File(params
+	.get("indexPath"))));
+
+    PriorStore store = PriorStore.readText(params.get("letor:pageRankFile"));
+    store.write(params.get("priorStorePath"));
+
+    int found = 0;
+    for (int docid = 0; docid < store.size(); docid++)
+      if (!Double.isNaN(store.get(docid)))
+	found++;
+
+    System.out.println("Prior store: " + store.size() + " documents, " +
+		       found + " with a prior");
+    QryEval.READER.close();
+  }
+}
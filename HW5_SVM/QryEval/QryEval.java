@@ -34,6 +34,11 @@ public class QryEval {
 	// own headaches.
 
 	public static IndexReader READER;
+	public static IndexSegments segments;
+	public static BigramIndex bigramIndex = null;
+	public static ForwardIndex forwardIndex = null;
+	public static PriorStore priorStore = null;
+	public static DocAttributes docAttributes = null;
 	public static DocLengthStore docLenStore;
 
 	// Create and configure an English analyzer that will be used for
@@ -62,17 +67,8 @@ public class QryEval {
 
 		final long startTime = System.currentTimeMillis();
 
-		// read in the parameter file; one parameter per line in format of
-		// key=value
-		Map<String, String> params = new HashMap<String, String>();
-		Scanner scan = new Scanner(new File(args[0]));
-		String line = null;
-		do {
-			line = scan.nextLine();
-			String[] pair = line.split("=");
-			params.put(pair[0].trim(), pair[1].trim());
-		} while (scan.hasNext());
-		scan.close();
+		// read in the parameter file
+		Map<String, String> params = readParameters(args[0]);
 
 		// parameters required for this example to run
 		if (!params.containsKey("indexPath")) {
@@ -97,83 +93,58 @@ public class QryEval {
 			System.exit(1);
 		}
 
+		segments = new IndexSegments(READER);
 		docLenStore = new DocLengthStore(READER);
 
-		RetrievalModel model = null;
-		String inputModel = params.get("retrievalAlgorithm");
-		System.out.println(inputModel);
-		if (inputModel.equals("UnrankedBoolean")) {
-			model = new RetrievalModelUnrankedBoolean();
-		} else if (inputModel.equals("RankedBoolean")) {
-			model = new RetrievalModelRankedBoolean();
-		} else if (inputModel.equals("BM25")) {
-			double k_1, b, k_3;
-			k_1 = Double.parseDouble(params.get("BM25:k_1"));
-			b = Double.parseDouble(params.get("BM25:b"));
-			k_3 = Double.parseDouble(params.get("BM25:k_3"));
-
-			if (k_1 < 0 || b < 0 || b > 1 || k_3 < 0) {
-				System.err.println("Wrong Value for k_1, b, k_3");
-				System.exit(1);
-			}
-
-			model = new RetrievalModelBM25(k_1, b, k_3);
-		} else if (inputModel.equals("Indri")) {
-			double mu, lambda;
-			mu = Double.parseDouble(params.get("Indri:mu"));
-			lambda = Double.parseDouble(params.get("Indri:lambda"));
-
-			if (mu < 0 || lambda < 0 || lambda > 1) {
-				System.err.println("Wrong Value for mu, lambda");
-				System.exit(1);
-			}
-
-			model = new RetrievalModelIndri(mu, lambda);
-		} else if (inputModel.equals("letor")) {
-			double k_1, b, k_3;
-			k_1 = Double.parseDouble(params.get("BM25:k_1"));
-			b = Double.parseDouble(params.get("BM25:b"));
-			k_3 = Double.parseDouble(params.get("BM25:k_3"));
+		// precomputed #NEAR/1 lists built by BigramIndexBuilder
+		if (params.containsKey("bigramIndexPath")) {
+			bigramIndex = new BigramIndex(params.get("bigramIndexPath"));
+			System.out.println("Bigram index: " + bigramIndex.size()
+					+ " pairs");
+		}
 
-			if (k_1 < 0 || b < 0 || b > 1 || k_3 < 0) {
-				System.err.println("Wrong Value for k_1, b, k_3");
-				System.exit(1);
-			}
+		// per-document term ids and tfs built by ForwardIndexBuilder
+		if (params.containsKey("forwardIndexPath")) {
+			forwardIndex = new ForwardIndex(params.get("forwardIndexPath"));
+		}
 
-			double mu, lambda;
-			mu = Double.parseDouble(params.get("Indri:mu"));
-			lambda = Double.parseDouble(params.get("Indri:lambda"));
+		// limits on the terms that one wildcard expands to
+		if (params.containsKey("wildcardMaxExpansions")) {
+			QryopIlWildcard.maxExpansions = Integer.parseInt(params
+					.get("wildcardMaxExpansions"));
+		}
+		if (params.containsKey("wildcardMaxMemoryMB")) {
+			QryopIlWildcard.maxMemoryMB = Long.parseLong(params
+					.get("wildcardMaxMemoryMB"));
+		}
 
-			if (mu < 0 || lambda < 0 || lambda > 1) {
-				System.err.println("Wrong Value for mu, lambda");
-				System.exit(1);
-			}
+		// term-at-a-time or document-at-a-time evaluation of #SUM and
+		// ranked boolean #OR: taat, daat or auto (default)
+		if (params.containsKey("evaluationMode")) {
+			ScoreAccumulator.mode = params.get("evaluationMode");
+		}
 
-			model = new RetrievalModelLetor(Double.parseDouble(params
-					.get("letor:svmRankParamC")), k_1, b, k_3, mu, lambda);
+		String inputModel = params.get("retrievalAlgorithm");
+		System.out.println(inputModel);
+		RetrievalModel model = createRetrievalModel(params);
+
+		// document priors (PageRank) by internal docid, text or binary
+		// (PriorStoreBuilder)
+		if (params.containsKey("priorStorePath")) {
+			priorStore = PriorStore.open(params.get("priorStorePath"));
+		} else if (model instanceof RetrievalModelLetor) {
+			priorStore = PriorStore
+					.open(((RetrievalModelLetor) model).pageRankFile);
+		}
 
-			model.setParameter("trainingQueryFile",
-					params.get("letor:trainingQueryFile"));
-			model.setParameter("trainingQrelsFile",
-					params.get("letor:trainingQrelsFile"));
-			model.setParameter("trainingFeatureVectorFile",
-					params.get("letor:trainingFeatureVectorsFile"));
-			model.setParameter("pageRankFile", params.get("letor:pageRankFile"));
-			model.setParameter("featureDisable",
-					params.get("letor:featureDisable"));
-			model.setParameter("svmRankLearnPath",
-					params.get("letor:svmRankLearnPath"));
-			model.setParameter("svmRankClassifyPath",
-					params.get("letor:svmRankClassifyPath"));
-			model.setParameter("svmRankModelFile",
-					params.get("letor:svmRankModelFile"));
-			model.setParameter("testingFeatureVectorsFile",
-					params.get("letor:testingFeatureVectorsFile"));
-			model.setParameter("testingDocumentScores",
-					params.get("letor:testingDocumentScores"));
-		} else {
-			System.err.println("RetrievalModel does not exists: " + inputModel);
-			System.exit(1);
+		// spam score, URL depth and Wikipedia flag by internal docid,
+		// precomputed by DocAttributesBuilder, so feature extraction never
+		// reads a stored document
+		if (params.containsKey("docAttributesPath")) {
+			docAttributes = DocAttributes.open(params.get("docAttributesPath"));
+		} else if (model instanceof RetrievalModelLetor) {
+			fatalError("Error: LeToR needs docAttributesPath; build it with "
+					+ "java DocAttributesBuilder parameterFile.");
 		}
 
 		FeatureVector fv = null;
@@ -185,15 +156,27 @@ public class QryEval {
 			fv.readToQueryMap(((RetrievalModelLetor) model).trainingQueryFile);
 			fv.readToReleMapFromFile(((RetrievalModelLetor) model).trainingQrelsFile);
 			// construct training feature vector
-			fv.constructFeatureVectors((RetrievalModelLetor) model,
-					((RetrievalModelLetor) model).trainingFeatureVectorFile);
+			FeatureMatrix trainingMatrix = buildFeatureMatrix(
+					(RetrievalModelLetor) model, fv,
+					((RetrievalModelLetor) model).trainingFeatureVectorFile,
+					((RetrievalModelLetor) model).trainingFeatureMatrixFile);
 			// run svm_train to get training model
-			svmTrain((RetrievalModelLetor) model);
-			// read in testing query
+			svmTrain((RetrievalModelLetor) model, trainingMatrix);
+			// stop the training feature workers; read in testing query
+			fv.close();
 			fv = new FeatureVector();
 			fv.readToQueryMap(queryReadPath);
 		}
 
+		// with the in-JVM scorer, each query is reranked as soon as it
+		// has been retrieved
+		LetorReranker reranker = null;
+		if (model instanceof RetrievalModelLetor
+				&& ((RetrievalModelLetor) model).svmRankClassifier
+						.equals("java")) {
+			reranker = new LetorReranker((RetrievalModelLetor) model, fv);
+		}
+
 		// read query from queryFilePath
 		File queryFile = new File(queryReadPath);
 		boolean needExpansion = model instanceof RetrievalModelIndri
@@ -230,6 +213,28 @@ public class QryEval {
 			}
 		}
 
+		// score-at-a-time evaluation on an impact index built by
+		// ImpactIndexBuilder; queries it cannot answer fall back to
+		// the inverted lists
+		ImpactIndex impactIndex = null;
+		int impactTopK = 100;
+		if (params.containsKey("impactIndexPath")) {
+			impactIndex = new ImpactIndex(params.get("impactIndexPath"));
+			if (params.containsKey("impactTopK")) {
+				impactTopK = Integer.parseInt(params.get("impactTopK"));
+			}
+			ImpactIndex.verbose = params.containsKey("impactVerbose")
+					&& params.get("impactVerbose").equalsIgnoreCase("true");
+		}
+
+		// per-query latency budget in milliseconds; queries that run
+		// out of time return the best results found so far
+		long queryTimeBudget = 0;
+		int timedOutQueries = 0, queryCount = 0;
+		if (params.containsKey("queryTimeBudget")) {
+			queryTimeBudget = Long.parseLong(params.get("queryTimeBudget"));
+		}
+
 		// use the read in query to retrieve documents
 		FileInputStream fin = new FileInputStream(queryFile);
 		BufferedReader br = new BufferedReader(new InputStreamReader(fin));
@@ -244,6 +249,8 @@ public class QryEval {
 		while ((query_line = br.readLine()) != null) {
 			query = new String(query_line).trim().split(":");
 
+			queryCount++;
+			QueryDeadline.start(queryTimeBudget);
 			qTree = parseQuery(query[1], model);
 			QryResult result = null;
 			List<String> sResult = null; // sorted result
@@ -253,20 +260,21 @@ public class QryEval {
 				// read a document ranking from the fbInitialRankingFile
 				sResult = initialRanking.get(Integer.parseInt(query[0]));
 			} else {
+				if (impactIndex != null) {
+					result = impactIndex.evaluate(qTree, model, impactTopK);
+				}
 				// use evaluate from HW3 to retrieve documents
-				if (model instanceof RetrievalModelBM25
-						|| model instanceof RetrievalModelIndri
-						|| model instanceof RetrievalModelLetor) {
-					result = qTree.evaluate(model);
-				} else {
-					QryopSlScore scoreOp = new QryopSlScore(qTree);
-					result = scoreOp.evaluate(model);
+				if (result == null) {
+					result = evaluateQuery(qTree, model);
 				}
 				sResult = sortedResult(result);
+				result.partial = QueryDeadline.hasExpired();
 			}
 
-			// if expand query is enabled, re-evaluate the qeury
-			if (needExpansion) {
+			// if expand query is enabled, re-evaluate the qeury. A partial
+			// ranking is kept as it is: there is no time left to evaluate
+			// the expanded query.
+			if (needExpansion && (result == null || !result.partial)) {
 				// construct expanded query
 				String expandQuery = qExp.constructExpandQuery(sResult);
 
@@ -287,9 +295,32 @@ public class QryEval {
 				sResult = sortedResult(result);
 			}
 
-			if (model instanceof RetrievalModelLetor) {
-				// construct relevance judgement map
-				fv.readToReleMapFromResult(Integer.parseInt(query[0]), sResult);
+			// rerank the top documents within the same time budget
+			if (reranker != null) {
+				sResult = reranker.rerank(Integer.parseInt(query[0]), sResult);
+			}
+
+			if (QueryDeadline.hasExpired()) {
+				timedOutQueries++;
+				if (result != null) {
+					result.partial = true;
+				}
+				System.out.println("Query " + query[0] + ": time budget of "
+						+ queryTimeBudget + " ms exceeded, partial result");
+			}
+
+			if (reranker != null) {
+				printResults(Integer.parseInt(query[0]), sResult,
+						(sResult == null) ? 0 : sResult.size(), output,
+						resultWriter);
+			} else if (model instanceof RetrievalModelLetor) {
+				// construct relevance judgement map; a query that matched
+				// nothing or ran out of time is left out of the reranking
+				if (sResult != null && !sResult.isEmpty()
+						&& (result == null || !result.partial)) {
+					fv.readToReleMapFromResult(Integer.parseInt(query[0]),
+							sResult);
+				}
 			} else {
 				printResults(Integer.parseInt(query[0]), sResult, result.docScores.scores.size(),
 						output, resultWriter);
@@ -297,43 +328,27 @@ public class QryEval {
 		} // end query iteration
 		br.close();
 
-		if (model instanceof RetrievalModelLetor) {
+		if (reranker != null) {
+			reranker.close();
+		} else if (model instanceof RetrievalModelLetor) {
 			// construct testing feature vector
 			String testingFeatureVectorsFile = ((RetrievalModelLetor) model)
 					.testingFeatureVectorsFile;
 			String testingDocumentScores = ((RetrievalModelLetor) model).
 					testingDocumentScores;
 			System.out.println("Start constructing testing feature vector");
-			fv.constructFeatureVectors((RetrievalModelLetor) model,
-					testingFeatureVectorsFile);
+			buildFeatureMatrix((RetrievalModelLetor) model, fv,
+					testingFeatureVectorsFile,
+					((RetrievalModelLetor) model).testingFeatureMatrixFile);
+			fv.close();
 			System.out.println("Finish constructing testing feature vector");
-			svmTest((RetrievalModelLetor) model);
 
 			// read in final scores
 			// Map<qid, List<external_id:score>>
-			Map<Integer, List<String>> rankMap = new HashMap<Integer, List<String>>();
-			BufferedReader fvbr = new BufferedReader(new InputStreamReader(
-					new FileInputStream(testingFeatureVectorsFile)));
-			BufferedReader dsbr = new BufferedReader(new InputStreamReader(
-					new FileInputStream(testingDocumentScores)));
-			String fline, dline;
-			while((fline = fvbr.readLine()) != null) {
-				dline = dsbr.readLine();
-				String[] words = fline.trim().split("\t");
-				int qid = Integer.parseInt(words[1].trim().split(":")[1]);
-				String extid = words[words.length-1];
-				String docScore = dline.trim();
-				if (rankMap.containsKey(qid)) {
-					rankMap.get(qid).add(String.format("%s:%s", extid, docScore));
-				} else {
-					List<String> temp = new ArrayList<String>();
-					temp.add(String.format("%s:%s", extid, docScore));
-					rankMap.put(qid, temp);
-				}
-			}
-			fvbr.close();
-			dsbr.close();
-			
+			svmTest((RetrievalModelLetor) model);
+			Map<Integer, List<String>> rankMap = readDocumentScores(
+					testingFeatureVectorsFile, testingDocumentScores);
+
 			// re-rank the result
 			// sort query ids
 			List<Integer> sortedQids = new ArrayList<Integer>(rankMap.size());
@@ -356,9 +371,194 @@ public class QryEval {
 
 		final long endTime = System.currentTimeMillis();
 		System.out.println("Total Time: " + (endTime - startTime) / 1000.0);
+		if (queryTimeBudget > 0) {
+			System.out.println("Timed out queries: " + timedOutQueries + " of "
+					+ queryCount);
+		}
 		printMemoryUsage(false);
 	}
 
+	/**
+	 * Create the retrieval model named by the retrievalAlgorithm parameter.
+	 * 
+	 * @param params
+	 *            The parameters read from the parameter file.
+	 * @return The retrieval model.
+	 */
+	static RetrievalModel createRetrievalModel(Map<String, String> params) {
+		RetrievalModel model = null;
+		String inputModel = params.get("retrievalAlgorithm");
+		if (inputModel.equals("UnrankedBoolean")) {
+			model = new RetrievalModelUnrankedBoolean();
+		} else if (inputModel.equals("RankedBoolean")) {
+			model = new RetrievalModelRankedBoolean();
+		} else if (inputModel.equals("BM25")) {
+			double k_1, b, k_3;
+			k_1 = Double.parseDouble(params.get("BM25:k_1"));
+			b = Double.parseDouble(params.get("BM25:b"));
+			k_3 = Double.parseDouble(params.get("BM25:k_3"));
+
+			if (k_1 < 0 || b < 0 || b > 1 || k_3 < 0) {
+				System.err.println("Wrong Value for k_1, b, k_3");
+				System.exit(1);
+			}
+
+			model = new RetrievalModelBM25(k_1, b, k_3);
+		} else if (inputModel.equals("Indri")) {
+			double mu, lambda;
+			mu = Double.parseDouble(params.get("Indri:mu"));
+			lambda = Double.parseDouble(params.get("Indri:lambda"));
+
+			if (mu < 0 || lambda < 0 || lambda > 1) {
+				System.err.println("Wrong Value for mu, lambda");
+				System.exit(1);
+			}
+
+			model = new RetrievalModelIndri(mu, lambda);
+
+			if (params.containsKey("Indri:sdmWeights")
+					&& !((RetrievalModelIndri) model).setSdmWeights(params
+							.get("Indri:sdmWeights"))) {
+				System.exit(1);
+			}
+		} else if (inputModel.equals("letor")) {
+			double k_1, b, k_3;
+			k_1 = Double.parseDouble(params.get("BM25:k_1"));
+			b = Double.parseDouble(params.get("BM25:b"));
+			k_3 = Double.parseDouble(params.get("BM25:k_3"));
+
+			if (k_1 < 0 || b < 0 || b > 1 || k_3 < 0) {
+				System.err.println("Wrong Value for k_1, b, k_3");
+				System.exit(1);
+			}
+
+			double mu, lambda;
+			mu = Double.parseDouble(params.get("Indri:mu"));
+			lambda = Double.parseDouble(params.get("Indri:lambda"));
+
+			if (mu < 0 || lambda < 0 || lambda > 1) {
+				System.err.println("Wrong Value for mu, lambda");
+				System.exit(1);
+			}
+
+			model = new RetrievalModelLetor(Double.parseDouble(params
+					.get("letor:svmRankParamC")), k_1, b, k_3, mu, lambda);
+
+			model.setParameter("trainingQueryFile",
+					params.get("letor:trainingQueryFile"));
+			model.setParameter("trainingQrelsFile",
+					params.get("letor:trainingQrelsFile"));
+			model.setParameter("trainingFeatureVectorFile",
+					params.get("letor:trainingFeatureVectorsFile"));
+			model.setParameter("pageRankFile", params.get("letor:pageRankFile"));
+			model.setParameter("featureDisable",
+					params.get("letor:featureDisable"));
+			model.setParameter("svmRankLearnPath",
+					params.get("letor:svmRankLearnPath"));
+			model.setParameter("svmRankClassifyPath",
+					params.get("letor:svmRankClassifyPath"));
+			model.setParameter("svmRankModelFile",
+					params.get("letor:svmRankModelFile"));
+			model.setParameter("testingFeatureVectorsFile",
+					params.get("letor:testingFeatureVectorsFile"));
+			model.setParameter("testingDocumentScores",
+					params.get("letor:testingDocumentScores"));
+			if (params.containsKey("letor:featureThreads")) {
+				model.setParameter("featureThreads",
+						params.get("letor:featureThreads"));
+			}
+			// train in the JVM if asked to, or if there is no svm_rank_learn
+			if (params.containsKey("letor:svmRankTrainer")) {
+				model.setParameter("svmRankTrainer",
+						params.get("letor:svmRankTrainer"));
+			} else if (!params.containsKey("letor:svmRankLearnPath")) {
+				model.setParameter("svmRankTrainer", "java");
+			}
+			// score in the JVM if asked to, or if there is no
+			// svm_rank_classify
+			if (params.containsKey("letor:svmRankClassifier")) {
+				model.setParameter("svmRankClassifier",
+						params.get("letor:svmRankClassifier"));
+			} else if (!params.containsKey("letor:svmRankClassifyPath")) {
+				model.setParameter("svmRankClassifier", "java");
+			}
+			// binary feature matrices, and whether existing ones are
+			// loaded instead of extracting the features again
+			model.setParameter("trainingFeatureMatrixFile",
+					params.get("letor:trainingFeatureMatrixFile"));
+			model.setParameter("testingFeatureMatrixFile",
+					params.get("letor:testingFeatureMatrixFile"));
+			if (params.containsKey("letor:reuseFeatureMatrix")) {
+				model.setParameter("reuseFeatureMatrix",
+						params.get("letor:reuseFeatureMatrix"));
+			}
+			if (params.containsKey("letor:rerankDepth")) {
+				model.setParameter("rerankDepth",
+						params.get("letor:rerankDepth"));
+			}
+			if (params.containsKey("letor:svmRankIterations")) {
+				model.setParameter("svmRankIterations",
+						params.get("letor:svmRankIterations"));
+			}
+		} else {
+			System.err.println("RetrievalModel does not exists: " + inputModel);
+			System.exit(1);
+		}
+
+		return model;
+	}
+
+	/**
+	 * Evaluate a query tree with a retrieval model. Unranked boolean results
+	 * are converted from bitmaps to score lists.
+	 * 
+	 * @param qTree
+	 *            The query tree.
+	 * @param model
+	 *            The retrieval model.
+	 * @return The result of evaluating the query.
+	 * @throws IOException
+	 */
+	static QryResult evaluateQuery(Qryop qTree, RetrievalModel model)
+			throws IOException {
+		QryResult result;
+		if (model instanceof RetrievalModelBM25
+				|| model instanceof RetrievalModelIndri
+				|| model instanceof RetrievalModelLetor) {
+			result = qTree.evaluate(model);
+		} else {
+			QryopSlScore scoreOp = new QryopSlScore(qTree);
+			result = scoreOp.evaluate(model);
+		}
+		if (result.docBitmap != null) {
+			// unranked boolean results are bitmaps; every
+			// matching document has a score of 1.0
+			result.docScores = result.docBitmap.toScoreList();
+		}
+		return result;
+	}
+
+	/**
+	 * Read a parameter file; one parameter per line in format of key=value.
+	 * 
+	 * @param path
+	 *            The path to the parameter file.
+	 * @return A map from parameter names to values.
+	 * @throws IOException
+	 */
+	static Map<String, String> readParameters(String path) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		Scanner scan = new Scanner(new File(path));
+		String line = null;
+		do {
+			line = scan.nextLine();
+			String[] pair = line.split("=");
+			params.put(pair[0].trim(), pair[1].trim());
+		} while (scan.hasNext());
+		scan.close();
+		return params;
+	}
+
 	/**
 	 * Write an error message and exit. This can be done in other ways, but I
 	 * wanted something that takes just one statement so that it is easy to
@@ -492,6 +692,12 @@ public class QryEval {
 			} else if (token.equalsIgnoreCase("#wsum")) {
 				currentOp = new QryopSlWeight(false);
 				stack.push(currentOp);
+			} else if (token.equalsIgnoreCase("#fields")) {
+				currentOp = new QryopSlFields();
+				stack.push(currentOp);
+			} else if (token.equalsIgnoreCase("#sdm")) {
+				currentOp = new QryopSlSdm();
+				stack.push(currentOp);
 			} else if (token.equalsIgnoreCase("#sum")) {
 				currentOp = new QryopSlSum();
 				stack.push(currentOp);
@@ -525,6 +731,11 @@ public class QryEval {
 					((QryopSlWeight) currentOp).add(Double.parseDouble(token));
 					continue;
 				}
+				if (currentOp instanceof QryopSlFields
+						&& ((QryopSlFields) currentOp).expectsWeight()) {
+					((QryopSlFields) currentOp).add(Double.parseDouble(token));
+					continue;
+				}
 
 				String field = new String("body");
 				if (token.contains(".")) {
@@ -532,7 +743,11 @@ public class QryEval {
 					token = tokenAndField[0];
 					field = tokenAndField[1];
 				}
-				if (tokenizeQuery(token).length > 0) {
+				if (token.contains("*") || token.contains("?")) {
+					// wildcards match index terms, so they are not stemmed
+					currentOp.add(new QryopIlWildcard(token.toLowerCase(),
+							field));
+				} else if (tokenizeQuery(token).length > 0) {
 					currentOp.add(new QryopIlTerm(tokenizeQuery(token)[0],
 							field));
 				} else if (currentOp instanceof QryopSlWeight
@@ -540,6 +755,8 @@ public class QryEval {
 					((QryopSlWeight) currentOp).setIsWeight(true);
 					((QryopSlWeight) currentOp).weight
 							.remove(((QryopSlWeight) currentOp).weight.size() - 1);
+				} else if (currentOp instanceof QryopSlFields) {
+					((QryopSlFields) currentOp).removeLastWeight();
 				}
 			}
 		}
@@ -553,10 +770,42 @@ public class QryEval {
 			return null;
 		}
 
+		if (currentOp != null) {
+			markPositions(currentOp, false);
+		}
+
 		System.out.println("return value: " + currentOp);
 		return currentOp;
 	}
 
+	/**
+	 * Mark which terms need positions. Only #NEAR, #WINDOW, #SYN and #SDM use
+	 * positions; terms elsewhere read docids and tfs only.
+	 * 
+	 * @param q
+	 *            A query tree.
+	 * @param positional
+	 *            Whether q is inside a positional operator.
+	 */
+	static void markPositions(Qryop q, boolean positional) {
+		if (q instanceof QryopIlTerm) {
+			((QryopIlTerm) q).setPositions(positional);
+			return;
+		}
+		if (q instanceof QryopIlWildcard) {
+			((QryopIlWildcard) q).setPositions(positional);
+			return;
+		}
+
+		positional = positional || q instanceof QryopIlNear
+				|| q instanceof QryopIlWindow || q instanceof QryopIlSyn
+				|| q instanceof QryopSlSdm;
+
+		for (Qryop arg : q.args) {
+			markPositions(arg, positional);
+		}
+	}
+
 	/**
 	 * Print a message indicating the amount of memory used. The caller can
 	 * indicate whether garbage collection should be performed, which slows the
@@ -659,7 +908,43 @@ public class QryEval {
 		return tokens.toArray(new String[tokens.size()]);
 	}
 
-	static void svmTrain(RetrievalModelLetor model) throws Exception {
+	/**
+	 * Build the feature matrix of the queries and documents in fv, or load
+	 * it from matrixFile if letor:reuseFeatureMatrix is true and the file
+	 * exists. The matrix is saved to matrixFile, and exported to textFile in
+	 * the svm_rank format, when they are given.
+	 */
+	static FeatureMatrix buildFeatureMatrix(RetrievalModelLetor model,
+			FeatureVector fv, String textFile, String matrixFile)
+			throws Exception {
+		if (model.reuseFeatureMatrix && matrixFile != null
+				&& new File(matrixFile).exists()) {
+			FeatureMatrix matrix = FeatureMatrix.read(matrixFile);
+			System.out.println("Feature matrix loaded from " + matrixFile
+					+ ": " + matrix.rows + " documents");
+			if (textFile != null) {
+				matrix.writeSvmRank(textFile, false);
+			}
+			return matrix;
+		}
+
+		FeatureMatrix matrix = fv.constructFeatureVectors(model, textFile);
+		if (matrixFile != null) {
+			matrix.write(matrixFile);
+		}
+		return matrix;
+	}
+
+	static void svmTrain(RetrievalModelLetor model, FeatureMatrix matrix)
+			throws Exception {
+		if (model.svmRankTrainer.equals("java")) {
+			RankSvmTrainer trainer = new RankSvmTrainer(matrix,
+					model.getParameter("svmC"), model.featureThreads);
+			double[] w = trainer.train(model.svmRankIterations);
+			RankSvmTrainer.writeModel(model.svmRankModelFile, w, matrix.rows);
+			return;
+		}
+
 		Process cmdProc = Runtime
 				.getRuntime()
 				.exec(new String[] { model.svmRankLearnPath, "-c",
@@ -676,6 +961,40 @@ public class QryEval {
 		consumeOutput(cmdProc);
 	}
 
+	/**
+	 * Read the scores written by svm_rank_classify, one per line of the
+	 * feature vector file.
+	 *
+	 * @return Map<qid, List<external_id:score>>
+	 */
+	static Map<Integer, List<String>> readDocumentScores(
+			String testingFeatureVectorsFile, String testingDocumentScores)
+			throws Exception {
+		Map<Integer, List<String>> rankMap = new HashMap<Integer, List<String>>();
+		BufferedReader fvbr = new BufferedReader(new InputStreamReader(
+				new FileInputStream(testingFeatureVectorsFile)));
+		BufferedReader dsbr = new BufferedReader(new InputStreamReader(
+				new FileInputStream(testingDocumentScores)));
+		String fline, dline;
+		while((fline = fvbr.readLine()) != null) {
+			dline = dsbr.readLine();
+			String[] words = fline.trim().split("\t");
+			int qid = Integer.parseInt(words[1].trim().split(":")[1]);
+			String extid = words[words.length-1];
+			String docScore = dline.trim();
+			if (rankMap.containsKey(qid)) {
+				rankMap.get(qid).add(String.format("%s:%s", extid, docScore));
+			} else {
+				List<String> temp = new ArrayList<String>();
+				temp.add(String.format("%s:%s", extid, docScore));
+				rankMap.put(qid, temp);
+			}
+		}
+		fvbr.close();
+		dsbr.close();
+		return rankMap;
+	}
+
 	static void consumeOutput(Process cmdProc) throws Exception {
 		// The stdout/stderr consuming code MUST be included.
 		// It prevents the OS from running out of output buffer space and
@@ -20,4 +20,13 @@ public class QryResult {
   ScoreList docScores = new ScoreList();
   InvList invertedList = new InvList();
 
+  // Unranked Boolean operators return the set of matching documents
+  // as a compressed bitmap instead of a score list.  Null otherwise.
+
+  DocBitmap docBitmap = null;
+
+  // True if evaluation ran out of its time budget and stopped early.
+
+  boolean partial = false;
+
 }
@@ -1,7 +1,7 @@
 import java.io.*;
 import java.util.*;
 
-public class QryopIlNear extends QryopIl {
+public class QryopIlNear extends QryopIlPositional {
 
   /**
    *  It is convenient for the constructor to accept a variable number
@@ -28,34 +28,61 @@ public class QryopIlNear extends QryopIl {
   }
 
   /**
-   *  Evaluates the query operator, including any child operators and
-   *  returns the result.
-   *  @param r A retrieval model that controls how the operator behaves.
-   *  @return The result of evaluating the query.
+   *  @return The maximum distance between adjacent arguments.
+   */
+  public int getDistance() {
+    return DIST;
+  }
+
+  /**
+   *  A #NEAR/1 of two terms may have a precomputed list in the bigram
+   *  index.
+   *  @return The inverted list, or null to compute it.
    *  @throws IOException
    */
-  public QryResult evaluate(RetrievalModel r) throws IOException {
-    //  Initialization
+  protected InvList precomputedList() throws IOException {
+    if (DIST == 1 && this.args.size() == 2 && QryEval.bigramIndex != null)
+      return QryEval.bigramIndex.getInvList(this.args.get(0), this.args.get(1));
+    return null;
+  }
 
-    allocArgPtrs (r);
-    syntaxCheckArgResults (this.argPtrs);
+  /**
+   *  Finds the positional matches in the documents that contain every
+   *  argument.  The arguments must already be evaluated.
+   *  @param candidates The documents to examine, or null for all.
+   *  @return The result of evaluating the query.
+   *  @throws IOException
+   */
+  protected QryResult verify(DocBitmap candidates) throws IOException {
 
     QryResult result = new QryResult ();
-    ArgPtr ptr0 = this.argPtrs.get(0);
-    result.invertedList.field = new String (ptr0.invList.field);
+    int argSize = this.argPtrs.size();
+    ArgPtr[] ptr = this.argPtrs.toArray(new ArgPtr[argSize]);
+    result.invertedList.field = new String (ptr[0].invList.field);
+
+    //  Scratch space is allocated once per evaluation and reused for
+    //  every candidate document: posIdx[j] is the current index into
+    //  the j'th argument's positions, and matches collects the
+    //  matching positions of the current document.
+
+    int[][] pos = new int[argSize][];
+    int[] posIdx = new int[argSize];
+    int[] matches = new int[16];
 
 	ITERATE_DOC_IN_PTR0:
-	for ( ; ptr0.nextDoc < ptr0.invList.postings.size(); ptr0.nextDoc ++) {
+	for ( ; ptr[0].nextDoc < ptr[0].invList.df &&
+		! QueryDeadline.expired(1); ptr[0].nextDoc ++) {
 		
-		int ptr0Docid = ptr0.invList.getDocid (ptr0.nextDoc);
-		// ptr[j] point to doc in jth argument invList with id = ptr0Docid
-		ArgPtr[] ptr = new ArgPtr[this.argPtrs.size()-1];
+		int ptr0Docid = ptr[0].invList.getDocid (ptr[0].nextDoc);
+
+		//  Skip documents that the parent operator can't return.
+		if (candidates != null && ! candidates.contains (ptr0Docid))
+			continue;
 	
   	  	//  Do the other query arguments have the ptr0Docid?
-  	  	for (int j=0; (j + 1) < this.argPtrs.size(); j++) {
-  	  		ptr[j] = this.argPtrs.get(j + 1);
+  	  	for (int j=1; j < argSize; j++) {
 	  	  	while (true) {
-				if (ptr[j].nextDoc >= ptr[j].invList.postings.size())
+				if (ptr[j].nextDoc >= ptr[j].invList.df)
 					break ITERATE_DOC_IN_PTR0;		// No more docs can match
 				else if (ptr[j].invList.getDocid (ptr[j].nextDoc) > ptr0Docid)
 					continue ITERATE_DOC_IN_PTR0;	// The ptr0docid can't match.
@@ -68,20 +95,23 @@ public class QryopIlNear extends QryopIl {
   	  	
   	  	// ptr0Docid exists in all argPtrs
   	  	// now check the distance for every arg
-  	  	List<Integer> positions = new ArrayList<Integer>();
-  	  	int[] ptrjCurIndex = new int[this.argPtrs.size()-1];
+  	  	for (int j = 0; j < argSize; j++) {
+  	  		pos[j] = ptr[j].invList.getPositions(ptr[j].nextDoc);
+  	  		posIdx[j] = 0;
+  	  	}
+  	  	int matchCount = 0;
   	  	
   	  	ITERATE_POS_IN_PTR0DOCID:
-  	  	for (int ptr0Pos : ptr0.invList.postings.get(ptr0.nextDoc).positions) {
+  	  	for ( ; posIdx[0] < pos[0].length; posIdx[0]++) {
+  	  		int ptr0Pos = pos[0][posIdx[0]];
   	  		int prevArgPos = ptr0Pos;
   	  		
   	  		ITERATE_POS_IN_PTRJ:
-	  	  	for (int j=0; (j + 1) < this.argPtrs.size(); j++) {
-	  	  		Vector<Integer> ptrjVector = ptr[j].invList.postings.get(ptr[j].nextDoc).positions;
+	  	  	for (int j = 1; j < argSize; j++) {
+	  	  		int[] ptrjPositions = pos[j];
 
-		  	  	for (int i = ptrjCurIndex[j]; i < ptrjVector.size(); i++) {
-		  	  		int ptrjPos = ptrjVector.get(i);
-		  	  		ptrjCurIndex[j] = i;
+		  	  	for ( ; posIdx[j] < ptrjPositions.length; posIdx[j]++) {
+		  	  		int ptrjPos = ptrjPositions[posIdx[j]];
 		  	  		
 		  	  		if (ptrjPos <= prevArgPos) {
 		  	  			// not yet the right position
@@ -102,16 +132,19 @@ public class QryopIlNear extends QryopIl {
 	  	  	}
 	  	  	
 	  	  	// add the match ptr0Pos
-	  	  	positions.add(ptr0Pos);
+	  	  	if (matchCount == matches.length) {
+	  	  		matches = Arrays.copyOf(matches, matchCount * 2);
+	  	  	}
+	  	  	matches[matchCount++] = ptr0Pos;
 	  	  	// increment ptrjPos
-	  	  	for (int j=0; (j + 1) < this.argPtrs.size(); j++) {
-	  	  		ptrjCurIndex[j]++;
+	  	  	for (int j = 1; j < argSize; j++) {
+	  	  		posIdx[j]++;
 	  	  	}
   	  	}
   	  	
   	  	// add the match doc with positions
-  	  	if (!positions.isEmpty()) {
-  	  		result.invertedList.appendPosting(ptr0Docid, positions);
+  	  	if (matchCount > 0) {
+  	  		result.invertedList.appendPosting(ptr0Docid, matches, matchCount);
   	  	}
 	}
 	
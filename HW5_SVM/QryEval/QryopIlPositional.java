@@ -0,0 +1,128 @@
+/**
+ *  The positional query operators (#NEAR/n, #WINDOW/n) are subclasses
+ *  of the QryopIlPositional class.  It splits their evaluation into
+ *  two phases so that a parent conjunction can limit the expensive
+ *  one to the documents it could still return:
+ *
+ *    approximate  A cheap docid-level approximation: the documents
+ *                 that contain every argument.
+ *    verify       The positional match, done only for the candidate
+ *                 documents the parent passed to setCandidates.
+ *
+ *  Calling evaluate without approximate and setCandidates evaluates
+ *  the operator for every document, as before.
+ */
+
+import java.io.*;
+import java.util.*;
+
+public abstract class QryopIlPositional extends QryopIl {
+
+  private boolean approximated = false;
+  private InvList precomputed = null;
+  private DocBitmap candidates = null;
+
+  /**
+   *  Evaluate the arguments and return the documents that contain all
+   *  of them.  The evaluated arguments are kept for the next call of
+   *  evaluate, which must follow.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return A superset of the documents that match the operator.
+   *  @throws IOException
+   */
+  public DocBitmap approximate(RetrievalModel r) throws IOException {
+
+    this.approximated = true;
+    this.precomputed = precomputedList();
+
+    if (this.precomputed != null)
+      return DocBitmap.fromInvList(this.precomputed);
+
+    allocArgPtrs (r);
+    syntaxCheckArgResults (this.argPtrs);
+
+    DocBitmap docs = null;
+    for (ArgPtr ptr : this.argPtrs) {
+      DocBitmap argDocs = DocBitmap.fromInvList(ptr.invList);
+      docs = (docs == null) ? argDocs : docs.and(argDocs);
+    }
+
+    return (docs == null) ? new DocBitmap() : docs;
+  }
+
+  /**
+   *  Limit the next evaluation to a set of candidate documents.
+   *  @param candidates The documents to verify, or null for all.
+   */
+  public void setCandidates(DocBitmap candidates) {
+    this.candidates = candidates;
+  }
+
+  /**
+   *  Evaluates the query operator, including any child operators and
+   *  returns the result.  If setCandidates was called, only candidate
+   *  documents are verified.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The result of evaluating the query.
+   *  @throws IOException
+   */
+  public QryResult evaluate(RetrievalModel r) throws IOException {
+
+    if (! this.approximated) {
+      this.precomputed = precomputedList();
+      if (this.precomputed == null) {
+	allocArgPtrs (r);
+	syntaxCheckArgResults (this.argPtrs);
+      }
+    }
+
+    InvList list = this.precomputed;
+    DocBitmap docs = this.candidates;
+    this.approximated = false;
+    this.precomputed = null;
+    this.candidates = null;
+
+    if (list == null)
+      return verify (docs);
+
+    QryResult result = new QryResult ();
+    if (docs == null) {
+      result.invertedList = list;
+    } else {
+      result.invertedList = new InvList (list.field);
+      for (int i = 0; i < list.df; i++)
+	if (docs.contains (list.getDocid (i)))
+	  result.invertedList.appendPosting (list.getDocid (i),
+					     list.getPositions (i),
+					     list.getTf (i));
+    }
+    return result;
+  }
+
+  /**
+   *  A complete inverted list for this operator that does not need to
+   *  be computed from the arguments, e.g. from an auxiliary index.
+   *  @return The inverted list, or null to compute it.
+   *  @throws IOException
+   */
+  protected InvList precomputedList() throws IOException {
+    return null;
+  }
+
+  /**
+   *  Compute the positional matches from the evaluated arguments, then
+   *  free the ArgPtrs.
+   *  @param candidates The documents to examine, or null for all.
+   *  @return The result of evaluating the query.
+   *  @throws IOException
+   */
+  protected abstract QryResult verify(DocBitmap candidates) throws IOException;
+
+  /**
+   *  syntaxCheckArgResults does syntax checking that can only be done
+   *  after query arguments are evaluated.
+   *  @param ptrs A list of ArgPtrs for this query operator.
+   *  @return True if the syntax is valid, false otherwise.
+   */
+  public abstract Boolean syntaxCheckArgResults (List<ArgPtr> ptrs);
+}
@@ -51,44 +51,42 @@ public class QryopIlSyn extends QryopIl {
     result.invertedList.field = new String (this.argPtrs.get(0).invList.field);
 
     //  Each pass of the loop adds 1 document to result until all of
-    //  the inverted lists are depleted.  When a list is depleted, it
-    //  is removed from argPtrs, so this loop runs until argPtrs is empty.
+    //  the inverted lists are depleted.  The arguments are merged
+    //  with a MergeHeap, and the positions of each document are
+    //  gathered into a reusable buffer.
 
-    //  This implementation is intended to be clear.  A more efficient
-    //  implementation would combine loops and use merge-sort.
+    MergeHeap merge = new MergeHeap (this.argPtrs);
+    int[] matched = new int[this.argPtrs.size()];
+    int[] positions = new int[16];
 
-    while (this.argPtrs.size() > 0) {
+    while (merge.size() > 0 && ! QueryDeadline.expired(1)) {
 
-      int nextDocid = getSmallestCurrentDocid ();
+      int nextDocid = merge.topDocid ();
+      int n = merge.popAll (matched);
 
       //  Create a new posting that is the union of the posting lists
       //  that match the nextDocid.
 
-      List<Integer> positions = new ArrayList<Integer>();
+      int length = 0;
 
-      for (int i=0; i<this.argPtrs.size(); i++) {
-	ArgPtr ptri = this.argPtrs.get(i);
+      for (int k=0; k<n; k++) {
+	ArgPtr ptri = this.argPtrs.get(matched[k]);
+	int[] ptriPositions = ptri.invList.getPositions (ptri.nextDoc);
 
-	if (ptri.invList.getDocid (ptri.nextDoc) == nextDocid) {
-	  positions.addAll (ptri.invList.postings.get(ptri.nextDoc).positions);
-	  ptri.nextDoc ++;
-	}
+	if (length + ptriPositions.length > positions.length)
+	  positions = Arrays.copyOf (positions,
+				     Math.max (positions.length * 2,
+					       length + ptriPositions.length));
+	System.arraycopy (ptriPositions, 0, positions, length,
+			  ptriPositions.length);
+	length += ptriPositions.length;
       }
 
-      Collections.sort (positions);
-      result.invertedList.appendPosting (nextDocid, positions);
+      if (n > 1)
+	Arrays.sort (positions, 0, length);
+      result.invertedList.appendPosting (nextDocid, positions, length);
 
-      //  If an ArgPtr has reached the end of its list, remove it.
-      //  The loop is backwards so that removing an arg does not
-      //  interfere with iteration.
-
-      for (int i=this.argPtrs.size()-1; i>=0; i--) {
-	ArgPtr ptri = this.argPtrs.get(i);
-
-	if (ptri.nextDoc >= ptri.invList.postings.size()) {
-	  this.argPtrs.remove (i);
-	}
-      }
+      merge.advance (matched, n);
     }
 
     freeArgPtrs();
@@ -96,23 +94,6 @@ public class QryopIlSyn extends QryopIl {
     return result;
   }
 
-  /**
-   *  Return the smallest unexamined docid from the ArgPtrs.
-   *  @return The smallest internal document id.
-   */
-  public int getSmallestCurrentDocid () {
-
-    int nextDocid = Integer.MAX_VALUE;
-
-    for (int i=0; i<this.argPtrs.size(); i++) {
-      ArgPtr ptri = this.argPtrs.get(i);
-      if (nextDocid > ptri.invList.getDocid (ptri.nextDoc))
-	nextDocid = ptri.invList.getDocid (ptri.nextDoc);
-      }
-
-    return (nextDocid);
-  }
-
   /**
    *  syntaxCheckArgResults does syntax checking that can only be done
    *  after query arguments are evaluated.
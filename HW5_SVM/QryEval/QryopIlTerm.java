@@ -14,6 +14,7 @@ public class QryopIlTerm extends QryopIl {
 
   private String term;
   private String field;
+  private boolean positions = true;	// Whether to read positions
 
   /**
    *  Constructor.  The term is assumed to match the body field.
@@ -36,6 +37,30 @@ public class QryopIlTerm extends QryopIl {
     this.field = f;
   }
 
+  /**
+   *  @return The term string.
+   */
+  public String getTerm() {
+    return this.term;
+  }
+
+  /**
+   *  @return The field that the term matches in.
+   */
+  public String getField() {
+    return this.field;
+  }
+
+  /**
+   *  Set whether the term's inverted list needs positions.  The query
+   *  parser clears this for terms that are not inside a positional
+   *  operator.
+   *  @param positions Whether to read the positions.
+   */
+  public void setPositions(boolean positions) {
+    this.positions = positions;
+  }
+
   /*
    *  Every Qryop is required to have an add method that appends
    *  query arguments, but that doesn't make sense for the Term
@@ -54,7 +79,7 @@ public class QryopIlTerm extends QryopIl {
    */
   public QryResult evaluate(RetrievalModel r) throws IOException {
     QryResult result = new QryResult();
-    result.invertedList = new InvList(this.term, this.field);
+    result.invertedList = new InvList(this.term, this.field, this.positions);
     return result;
   }
 
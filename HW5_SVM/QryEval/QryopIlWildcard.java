@@ -0,0 +1,311 @@
+/**
+ *  This class implements wildcard terms, e.g., app* or wom?n.title.
+ *  A '*' matches any sequence of characters and a '?' matches one
+ *  character.  Like #SYN, the result is the union of the inverted
+ *  lists of the matching terms, but the terms are not fetched as
+ *  separate InvLists and merged afterwards:
+ *
+ *    - The matching terms are enumerated once with a Lucene TermsEnum
+ *      that intersects the term dictionary with the pattern.
+ *    - In each segment, the postings enums of the terms are merged
+ *      directly.  A heap merges a few of them; a bitset of matching
+ *      documents with per-document tf counters handles expansions of
+ *      more than BITSET_EXPANSIONS terms.
+ *
+ *  An expansion is cut off after maxExpansions terms (parameter
+ *  wildcardMaxExpansions, default 1024), or when the estimated memory
+ *  of its inverted list and of the merge that builds it reaches
+ *  maxMemoryMB (parameter wildcardMaxMemoryMB, default 64).  A warning
+ *  is printed when that happens.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.util.*;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+
+public class QryopIlWildcard extends QryopIl {
+
+  public static int maxExpansions = 1024;
+  public static long maxMemoryMB = 64;
+
+  private static final int BITSET_EXPANSIONS = 32;
+
+  //  Estimated bytes of one posting and one position in an InvList.
+
+  private static final int POSTING_BYTES = 48;
+  private static final int POSITION_BYTES = 4;
+
+  private String pattern;
+  private String field;
+  private boolean positions = true;	// Whether to read positions
+
+  /**
+   *  Constructor.
+   *  @param p A lower-cased pattern with '*' and '?' wildcards.
+   *  @param f A field name.
+   */
+  public QryopIlWildcard(String p, String f) {
+    this.pattern = p;
+    this.field = f;
+  }
+
+  /**
+   *  Set whether the inverted list needs positions.  The query parser
+   *  clears this for wildcards that are not inside a positional
+   *  operator.
+   *  @param positions Whether to read the positions.
+   */
+  public void setPositions(boolean positions) {
+    this.positions = positions;
+  }
+
+  /*
+   *  A wildcard has no query arguments, so add does nothing.
+   *  @param {q} q The query argument (query operator) to append.
+   *  @return void
+   */
+  public void add (Qryop q) {
+  }
+
+  /**
+   *  Evaluates the query operator and returns the result.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The result of evaluating the query.
+   *  @throws IOException
+   */
+  public QryResult evaluate(RetrievalModel r) throws IOException {
+
+    QryResult result = new QryResult ();
+    result.invertedList.field = new String (this.field);
+
+    List<BytesRef> terms = expand ();
+    if (terms.isEmpty())
+      return result;
+
+    IndexSegments segments = QryEval.segments;
+
+    for (int leaf = 0; leaf < segments.size() && ! QueryDeadline.hasExpired();
+	 leaf++) {
+      Terms leafTerms = segments.reader(leaf).terms(this.field);
+      if (leafTerms == null)
+	continue;
+
+      //  Open the postings of the terms that occur in this segment.
+
+      TermsEnum termsEnum = leafTerms.iterator(null);
+      Bits liveDocs = segments.reader(leaf).getLiveDocs();
+      List<BytesRef> leafMatches = new ArrayList<BytesRef>();
+      List<DocsEnum> enums = new ArrayList<DocsEnum>();
+
+      for (BytesRef term : terms) {
+	if (! termsEnum.seekExact(term, true))
+	  continue;
+	DocsEnum postings = this.positions ?
+	  termsEnum.docsAndPositions(liveDocs, null) :
+	  termsEnum.docs(liveDocs, null, DocsEnum.FLAG_FREQS);
+	if (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+	  leafMatches.add(term);
+	  enums.add(postings);
+	}
+      }
+
+      if (enums.size() > BITSET_EXPANSIONS)
+	mergeBitset(enums, termsEnum, leafMatches, liveDocs,
+		    segments.reader(leaf).maxDoc(), segments.docBase(leaf),
+		    result.invertedList);
+      else
+	mergeHeap(enums, segments.docBase(leaf), result.invertedList);
+    }
+
+    return result;
+  }
+
+  /**
+   *  Find the terms of the field that match the pattern, in term
+   *  order, up to the expansion and memory limits.
+   */
+  private List<BytesRef> expand() throws IOException {
+
+    List<BytesRef> terms = new ArrayList<BytesRef>();
+    Terms fieldTerms = MultiFields.getTerms(QryEval.READER, this.field);
+    if (fieldTerms == null)
+      return terms;
+
+    CompiledAutomaton automaton = new CompiledAutomaton(
+      WildcardQuery.toAutomaton(new Term(this.field, this.pattern)));
+    TermsEnum termsEnum = automaton.getTermsEnum(fieldTerms);
+    long maxBytes = maxMemoryMB << 20;
+    long postingBytes = 0, positionBytes = 0;
+    long bitsetBytes = bitsetBytes();
+    BytesRef term;
+
+    while ((term = termsEnum.next()) != null) {
+      postingBytes += (long) termsEnum.docFreq() * POSTING_BYTES;
+      if (this.positions)
+	positionBytes += termsEnum.totalTermFreq() * POSITION_BYTES;
+
+      //  Beyond BITSET_EXPANSIONS terms, mergeBitset also holds its
+      //  per-document accumulators and a second copy of the positions.
+
+      long bytes = postingBytes + positionBytes;
+      if (terms.size() >= BITSET_EXPANSIONS)
+	bytes += bitsetBytes + positionBytes;
+
+      if (terms.size() >= maxExpansions || bytes > maxBytes) {
+	System.err.println("Warning: " + this.toString() + " was cut off at " +
+			   terms.size() + " terms.");
+	break;
+      }
+
+      terms.add(BytesRef.deepCopyOf(term));
+    }
+
+    return terms;
+  }
+
+  /**
+   *  The memory of the per-document accumulators of mergeBitset in the
+   *  largest segment: a bit and a tf counter per document, and with
+   *  positions, a position array reference and a fill counter.
+   */
+  private long bitsetBytes() {
+    IndexSegments segments = QryEval.segments;
+    long maxDoc = 0;
+    for (int leaf = 0; leaf < segments.size(); leaf++)
+      maxDoc = Math.max(maxDoc, segments.reader(leaf).maxDoc());
+
+    long bytes = maxDoc / 8 + maxDoc * 4;
+    if (this.positions)
+      bytes += maxDoc * (8 + 4);
+    return bytes;
+  }
+
+  /**
+   *  Merge the postings of one segment with a heap ordered by docid.
+   *  Each enum must already be on its first document.
+   */
+  private void mergeHeap(List<DocsEnum> enums, int docBase, InvList invList)
+    throws IOException {
+
+    java.util.PriorityQueue<DocsEnum> heap =
+      new java.util.PriorityQueue<DocsEnum>(Math.max(1, enums.size()),
+					    new Comparator<DocsEnum>() {
+	public int compare(DocsEnum a, DocsEnum b) {
+	  return a.docID() - b.docID();
+	}
+      });
+    heap.addAll(enums);
+    int[] positions = new int[16];
+
+    while (! heap.isEmpty() && ! QueryDeadline.expired(1)) {
+      int docid = heap.peek().docID();
+      int length = 0;
+      int n = 0;
+
+      while (! heap.isEmpty() && heap.peek().docID() == docid) {
+	DocsEnum postings = heap.poll();
+	int tf = postings.freq();
+
+	if (this.positions) {
+	  if (length + tf > positions.length)
+	    positions = Arrays.copyOf(positions,
+				      Math.max(positions.length * 2, length + tf));
+	  for (int j = 0; j < tf; j++)
+	    positions[length + j] =
+	      ((DocsAndPositionsEnum) postings).nextPosition();
+	}
+	length += tf;
+	n++;
+
+	if (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS)
+	  heap.add(postings);
+      }
+
+      if (! this.positions) {
+	invList.appendPosting(docBase + docid, length);
+	continue;
+      }
+
+      if (n > 1)
+	Arrays.sort(positions, 0, length);
+      invList.appendPosting(docBase + docid, positions, length);
+    }
+  }
+
+  /**
+   *  Merge the postings of one segment into a bitset of matching
+   *  documents and per-document tf counters.  With positions, a
+   *  second pass over the terms copies their positions into arrays
+   *  sized by the counters.  Each enum must already be on its first
+   *  document.
+   */
+  private void mergeBitset(List<DocsEnum> enums, TermsEnum termsEnum,
+			   List<BytesRef> terms, Bits liveDocs, int maxDoc,
+			   int docBase, InvList invList) throws IOException {
+
+    FixedBitSet docs = new FixedBitSet(maxDoc);
+    int[] tfs = new int[maxDoc];
+
+    int counted = 0;		// Terms counted before the deadline
+
+    for (DocsEnum postings : enums) {
+      do {
+	docs.set(postings.docID());
+	tfs[postings.docID()] += postings.freq();
+      } while (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS);
+
+      counted++;
+      if (QueryDeadline.expired(1))
+	break;
+    }
+
+    if (! this.positions) {
+      for (int docid = nextDoc(docs, 0); docid >= 0; docid = nextDoc(docs, docid + 1))
+	invList.appendPosting(docBase + docid, tfs[docid]);
+      return;
+    }
+
+    int[][] positions = new int[maxDoc][];
+    int[] filled = new int[maxDoc];
+    DocsAndPositionsEnum postings = null;
+
+    for (int docid = nextDoc(docs, 0); docid >= 0; docid = nextDoc(docs, docid + 1))
+      positions[docid] = new int[tfs[docid]];
+
+    for (BytesRef term : terms.subList(0, counted)) {
+      termsEnum.seekExact(term, true);
+      postings = termsEnum.docsAndPositions(liveDocs, postings);
+
+      while (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+	int docid = postings.docID();
+	for (int j = 0; j < postings.freq(); j++)
+	  positions[docid][filled[docid]++] = postings.nextPosition();
+      }
+    }
+
+    for (int docid = nextDoc(docs, 0); docid >= 0; docid = nextDoc(docs, docid + 1)) {
+      Arrays.sort(positions[docid], 0, filled[docid]);
+      invList.appendPosting(docBase + docid, positions[docid], filled[docid]);
+    }
+  }
+
+  /**
+   *  The first document in the bitset at or after docid, or -1.
+   */
+  private static int nextDoc(FixedBitSet docs, int docid) {
+    return (docid < docs.length()) ? docs.nextSetBit(docid) : -1;
+  }
+
+  /*
+   *  Return a string version of this query operator.
+   *  @return The string version of this query operator.
+   */
+  public String toString(){
+    return (this.pattern + "." + this.field);
+  }
+}
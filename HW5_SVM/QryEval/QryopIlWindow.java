@@ -1,7 +1,7 @@
 import java.io.*;
 import java.util.*;
 
-public class QryopIlWindow extends QryopIl {
+public class QryopIlWindow extends QryopIlPositional {
 
   /**
    *  It is convenient for the constructor to accept a variable number
@@ -28,36 +28,47 @@ public class QryopIlWindow extends QryopIl {
   }
 
   /**
-   *  Evaluates the query operator, including any child operators and
-   *  returns the result.
-   *  @param r A retrieval model that controls how the operator behaves.
+   *  Finds the windows in the documents that contain every argument.
+   *  The arguments must already be evaluated.
+   *  @param candidates The documents to examine, or null for all.
    *  @return The result of evaluating the query.
    *  @throws IOException
    */
-  public QryResult evaluate(RetrievalModel r) throws IOException {
-    //  Initialization
-
-    allocArgPtrs (r);
-    syntaxCheckArgResults (this.argPtrs);
+  protected QryResult verify(DocBitmap candidates) throws IOException {
 
     QryResult result = new QryResult ();
     
-    ArgPtr[] ptr = new ArgPtr[this.argPtrs.size()];
-    ptr[0] = this.argPtrs.get(0);
+    int argSize = this.argPtrs.size();
+    ArgPtr[] ptr = this.argPtrs.toArray(new ArgPtr[argSize]);
     result.invertedList.field = new String (ptr[0].invList.field);
 
+    //  Scratch space is allocated once per evaluation and reused for
+    //  every candidate document.  heap is a min-heap of argument
+    //  indexes ordered by their current position, so the start of the
+    //  window is found in O(1) and advanced in O(log args).
+
+    int[][] pos = new int[argSize][];
+    int[] posIdx = new int[argSize];
+    int[] curPos = new int[argSize];
+    int[] heap = new int[argSize];
+    int[] matches = new int[16];
+
 	ITERATE_DOC_IN_PTR0:
-	for ( ; ptr[0].nextDoc < ptr[0].invList.postings.size(); ptr[0].nextDoc ++) {
+	for ( ; ptr[0].nextDoc < ptr[0].invList.df &&
+		! QueryDeadline.expired(1); ptr[0].nextDoc ++) {
 		
 		int ptr0Docid = ptr[0].invList.getDocid (ptr[0].nextDoc);
+
+		//  Skip documents that the parent operator can't return.
+		if (candidates != null && ! candidates.contains (ptr0Docid))
+			continue;
 		// ptr[j] point to doc in jth argument invList with id = ptr0Docid
 		
 	
   	  	//  Do the other query arguments have the ptr0Docid?
-  	  	for (int j=1; j < this.argPtrs.size(); j++) {
-  	  		ptr[j] = this.argPtrs.get(j);
+  	  	for (int j=1; j < argSize; j++) {
 	  	  	while (true) {
-				if (ptr[j].nextDoc >= ptr[j].invList.postings.size())
+				if (ptr[j].nextDoc >= ptr[j].invList.df)
 					break ITERATE_DOC_IN_PTR0;		// No more docs can match
 				else if (ptr[j].invList.getDocid (ptr[j].nextDoc) > ptr0Docid)
 					continue ITERATE_DOC_IN_PTR0;	// The ptr0docid can't match.
@@ -70,44 +81,49 @@ public class QryopIlWindow extends QryopIl {
   	  	
   	  	// ptr0Docid exists in all argPtrs
   	  	// now check the distance in positions
-  	  	List<Integer> positions = new ArrayList<Integer>();
-  	  	int[] ptrjCurIndex = new int[this.argPtrs.size()];
-  	  	// init ptr position
+  	  	int matchCount = 0;
+  	  	int maxPos = Integer.MIN_VALUE;
+  	  	for (int i = 0; i < argSize; i++) {
+  	  		pos[i] = ptr[i].invList.getPositions(ptr[i].nextDoc);
+  	  		posIdx[i] = 0;
+  	  		curPos[i] = pos[i][0];
+  	  		maxPos = Math.max(maxPos, curPos[i]);
+  	  	}
+  	  	buildHeap(heap, curPos);
   	  	
   	  	ITERATE_POS_IN_PTR0DOCID:
   	    while (true) {
-  	    	int pos[] = new int[this.argPtrs.size()];
-  	    	for (int i = 0; i < this.argPtrs.size(); i++) {
-  	    		pos[i] = ptr[i].invList.postings.get(ptr[i].nextDoc).
-  	  	    			positions.get(ptrjCurIndex[i]);
-  	    	}
-  	    	int min = getMinValue(pos);
-  	    	if (min == -1) break;
-  	    	int minPos = pos[min];
-  	    	for (int j = 0; j < this.argPtrs.size(); j++) {
-  	    		if (pos[j] - minPos >= DIST) {
-  	    			ptrjCurIndex[min]++;
-  	    			if (ptrjCurIndex[min] >= ptr[min].invList.postings.
-  	    					get(ptr[min].nextDoc).positions.size()) {
-  	    				break ITERATE_POS_IN_PTR0DOCID;
-  	    			}
-  	    			continue ITERATE_POS_IN_PTR0DOCID;
+  	    	int min = heap[0];
+  	    	int minPos = curPos[min];
+  	    	if (maxPos - minPos >= DIST) {
+  	    		// the window is too wide; slide its start forward
+  	    		if (++posIdx[min] >= pos[min].length) {
+  	    			break ITERATE_POS_IN_PTR0DOCID;
   	    		}
+  	    		curPos[min] = pos[min][posIdx[min]];
+  	    		maxPos = Math.max(maxPos, curPos[min]);
+  	    		siftDown(heap, curPos, 0, argSize);
+  	    		continue ITERATE_POS_IN_PTR0DOCID;
   	    	}
   	    	// all positions are in window
-  	    	positions.add(minPos);
-  	    	for (int j = 0; j < this.argPtrs.size(); j++) {
-  	    		ptrjCurIndex[j]++;
-  	    		if (ptrjCurIndex[j] >= ptr[j].invList.postings.
-	    				get(ptr[j].nextDoc).positions.size()) {
+  	    	if (matchCount == matches.length) {
+  	    		matches = Arrays.copyOf(matches, matchCount * 2);
+  	    	}
+  	    	matches[matchCount++] = minPos;
+  	    	maxPos = Integer.MIN_VALUE;
+  	    	for (int j = 0; j < argSize; j++) {
+  	    		if (++posIdx[j] >= pos[j].length) {
 	    			break ITERATE_POS_IN_PTR0DOCID;
   	    		}
+  	    		curPos[j] = pos[j][posIdx[j]];
+  	    		maxPos = Math.max(maxPos, curPos[j]);
   	    	}
+  	    	buildHeap(heap, curPos);
   	    }
   	  	
   	  	// add the match doc with positions
-  	  	if (!positions.isEmpty()) {
-  	  		result.invertedList.appendPosting(ptr0Docid, positions);
+  	  	if (matchCount > 0) {
+  	  		result.invertedList.appendPosting(ptr0Docid, matches, matchCount);
   	  	}
 	}
 	
@@ -115,18 +131,48 @@ public class QryopIlWindow extends QryopIl {
     return result;
   }
   
-  public int getMinValue(int[] posArray) {
-	  int min = Integer.MAX_VALUE;
-	  int minIndex = -1;
-	  for (int i = 0; i < posArray.length; i++) {
-		  if (posArray[i] < min) {
-			  min = posArray[i];
-			  minIndex = i;
-		  }
+  /**
+   *  Arrange argument indexes 0..n-1 into a min-heap ordered by
+   *  their current positions.  Ties go to the lower argument index.
+   *  @param heap The heap array to fill.
+   *  @param curPos The current position of each argument.
+   */
+  private static void buildHeap(int[] heap, int[] curPos) {
+	  int n = heap.length;
+	  for (int i = 0; i < n; i++) {
+		  heap[i] = i;
+	  }
+	  for (int i = n / 2 - 1; i >= 0; i--) {
+		  siftDown(heap, curPos, i, n);
 	  }
-	  return minIndex;
   }
-  
+
+  /**
+   *  Restore the heap property below slot i after its key grew.
+   *  @param heap The heap of argument indexes.
+   *  @param curPos The current position of each argument.
+   *  @param i The heap slot to sift down.
+   *  @param n The number of entries in the heap.
+   */
+  private static void siftDown(int[] heap, int[] curPos, int i, int n) {
+	  int x = heap[i];
+	  while (true) {
+		  int child = 2 * i + 1;
+		  if (child >= n)
+			  break;
+		  if (child + 1 < n && less(heap[child + 1], heap[child], curPos))
+			  child++;
+		  if (!less(heap[child], x, curPos))
+			  break;
+		  heap[i] = heap[child];
+		  i = child;
+	  }
+	  heap[i] = x;
+  }
+
+  private static boolean less(int a, int b, int[] curPos) {
+	  return curPos[a] < curPos[b] || (curPos[a] == curPos[b] && a < b);
+  }
 
   /**
    *  syntaxCheckArgResults does syntax checking that can only be done
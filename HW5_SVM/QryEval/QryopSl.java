@@ -32,13 +32,39 @@ public abstract class QryopSl extends Qryop {
       ArgPtr ptri = new ArgPtr ();
       ptri.invList = null;
       //System.out.println(this.args.get(i).toString());
-      ptri.scoreList = this.args.get(i).evaluate(r).docScores;
+      QryResult argResult = this.args.get(i).evaluate(r);
+      if (argResult.docBitmap != null)
+        ptri.scoreList = argResult.docBitmap.toScoreList();
+      else
+        ptri.scoreList = argResult.docScores;
       ptri.nextDoc = 0;
 	
       this.argPtrs.add (ptri);
     }
   }
 
+  /**
+   *  Evaluate the i'th query argument for the unranked Boolean
+   *  retrieval model and return its matching documents as a bitmap.
+   *  Arguments that don't return ScoreLists are wrapped in a #SCORE
+   *  operator, as in allocArgPtrs.
+   *  @param i The index of the query argument.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The documents that match the argument.
+   *  @throws IOException
+   */
+  public DocBitmap evaluateArgBitmap (int i, RetrievalModel r) throws IOException {
+
+    if (! QryopSl.class.isInstance (this.args.get(i)))
+      this.args.set(i, new QryopSlScore(this.args.get(i)));
+
+    QryResult argResult = this.args.get(i).evaluate(r);
+
+    if (argResult.docBitmap != null)
+      return argResult.docBitmap;
+    return DocBitmap.fromScoreList(argResult.docScores);
+  }
+
   /*
    *  Calculate the default score for the specified document if it
    *  does not match the query operator.  This score is 0 for many
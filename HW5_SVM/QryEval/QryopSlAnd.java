@@ -55,7 +55,8 @@ public class QryopSlAnd extends QryopSl {
 
   /**
    *  Evaluates the query operator for boolean retrieval models,
-   *  including any child operators and returns the result.
+   *  including any child operators and returns the result.  The
+   *  result is a bitmap of the documents that match every argument.
    *  @param r A retrieval model that controls how the operator behaves.
    *  @return The result of evaluating the query.
    *  @throws IOException
@@ -63,64 +64,29 @@ public class QryopSlAnd extends QryopSl {
   public QryResult evaluateBoolean (RetrievalModel r) throws IOException {
 
 	  //  Initialization
-	  allocArgPtrs (r);
 	  QryResult result = new QryResult ();
+	  QryResult[] argResults = evaluateBooleanArgs (r);
+	  DocBitmap[] argDocs = new DocBitmap[argResults.length];
 	
-	  //  Sort the arguments so that the shortest lists are first.  This
-	  //  improves the efficiency of exact-match AND without changing
-	  //  the result.
-	
-	  for (int i=0; i<(this.argPtrs.size()-1); i++) {
-		  for (int j=i+1; j<this.argPtrs.size(); j++) {
-			  if (this.argPtrs.get(i).scoreList.scores.size() >
-				  this.argPtrs.get(j).scoreList.scores.size()) {
-				  ScoreList tmpScoreList = this.argPtrs.get(i).scoreList;
-				  this.argPtrs.get(i).scoreList = this.argPtrs.get(j).scoreList;
-				  this.argPtrs.get(j).scoreList = tmpScoreList;
-			  }
-		  }
+	  for (int i=0; i<argResults.length; i++) {
+		  argDocs[i] = toBitmap (argResults[i]);
 	  }
 	
-	  //  Exact-match AND requires that ALL scoreLists contain a
-	  //  document id.  Use the first (shortest) list to control the
-	  //  search for matches.
-	
-	  //  Named loops are a little ugly.  However, they make it easy
-	  //  to terminate an outer loop from within an inner loop.
-	  //  Otherwise it is necessary to use flags, which is also ugly.
-	
-	  ArgPtr ptr0 = this.argPtrs.get(0);
-	
-	  EVALUATEDOCUMENTS:
-      for ( ; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc ++) {
-	
-    	  int ptr0Docid = ptr0.scoreList.getDocid (ptr0.nextDoc);
-    	  double docScore = 1.0;
-	
-    	  //  Do the other query arguments have the ptr0Docid?
-	
-    	  for (int j=1; j<this.argPtrs.size(); j++) {
-	
-    		  ArgPtr ptrj = this.argPtrs.get(j);
-	
-    		  while (true) {
-    			  if (ptrj.nextDoc >= ptrj.scoreList.scores.size())
-    				  break EVALUATEDOCUMENTS;		// No more docs can match
-    			  else if (ptrj.scoreList.getDocid (ptrj.nextDoc) > ptr0Docid)
-    				  continue EVALUATEDOCUMENTS;	// The ptr0docid can't match.
-    			  else if (ptrj.scoreList.getDocid (ptrj.nextDoc) < ptr0Docid)
-    				  ptrj.nextDoc ++;			// Not yet at the right doc.
-    			  else
-    				  break;				// ptrj matches ptr0Docid
-    		  }
-    	  }
+	  //  Intersect the smallest sets first.  This keeps the
+	  //  intermediate results small without changing the result.
 	
-    	  //  The ptr0Docid matched all query arguments, so save it.
+	  Arrays.sort (argDocs, new Comparator<DocBitmap>() {
+		  public int compare (DocBitmap a, DocBitmap b) {
+			  return Integer.compare (a.cardinality(), b.cardinality());
+		  }
+	  });
 	
-    	  result.docScores.add (ptr0Docid, docScore);
+	  DocBitmap docs = argDocs[0];
+	  for (int i=1; i<argDocs.length && docs.cardinality() > 0; i++) {
+		  docs = docs.and (argDocs[i]);
 	  }
 	
-	  freeArgPtrs ();
+	  result.docBitmap = docs;
 	
 	  return result;
   }
@@ -129,7 +95,16 @@ public class QryopSlAnd extends QryopSl {
 
 	  //  Initialization
 	
-	  allocArgPtrs (r);
+	  for (QryResult argResult : evaluateBooleanArgs (r)) {
+		  ArgPtr ptri = new ArgPtr ();
+		  ptri.invList = null;
+		  if (argResult.docBitmap != null)
+			  ptri.scoreList = argResult.docBitmap.toScoreList ();
+		  else
+			  ptri.scoreList = argResult.docScores;
+		  ptri.nextDoc = 0;
+		  this.argPtrs.add (ptri);
+	  }
 	  QryResult result = new QryResult ();
 	
 	  //  Sort the arguments so that the shortest lists are first.  This
@@ -158,7 +133,8 @@ public class QryopSlAnd extends QryopSl {
 	  ArgPtr ptr0 = this.argPtrs.get(0);
 	
 	  EVALUATEDOCUMENTS:
-      for ( ; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc ++) {
+      for ( ; ptr0.nextDoc < ptr0.scoreList.scores.size() &&
+		    ! QueryDeadline.expired(1); ptr0.nextDoc ++) {
 	
     	  int ptr0Docid = ptr0.scoreList.getDocid (ptr0.nextDoc);
     	  double docScore = ptr0.scoreList.getDocidScore(ptr0.nextDoc);
@@ -195,59 +171,115 @@ public class QryopSlAnd extends QryopSl {
 	  return result;
   }
   
+  /**
+   *  Evaluates the arguments for the Boolean retrieval models.  A
+   *  document must match every argument, so positional arguments
+   *  (#NEAR, #WINDOW) are evaluated in two phases: the other arguments
+   *  are evaluated first, the candidate documents are narrowed by the
+   *  docid-level approximation of each positional argument, and
+   *  positions are verified only for the candidates that remain.
+   *  Arguments that don't return ScoreLists are wrapped in a #SCORE
+   *  operator, as in allocArgPtrs.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The results of the arguments, in argument order.
+   *  @throws IOException
+   */
+  private QryResult[] evaluateBooleanArgs (RetrievalModel r) throws IOException {
+
+	  int n = this.args.size();
+	  QryResult[] argResults = new QryResult[n];
+	  QryopIlPositional[] positional = new QryopIlPositional[n];
+	  boolean twoPhase = false;
+	
+	  for (int i=0; i<n; i++) {
+		  if (! QryopSl.class.isInstance (this.args.get(i)))
+			  this.args.set(i, new QryopSlScore(this.args.get(i)));
+		
+		  Qryop arg = this.args.get(i);
+		  if (arg instanceof QryopSlScore &&
+			  arg.args.get(0) instanceof QryopIlPositional) {
+			  positional[i] = (QryopIlPositional) arg.args.get(0);
+			  twoPhase = (n > 1);
+		  }
+	  }
+	
+	  //  Evaluate the other arguments first.
+	
+	  DocBitmap candidates = null;
+	
+	  for (int i=0; i<n; i++) {
+		  if (twoPhase && positional[i] != null)
+			  continue;
+		  argResults[i] = this.args.get(i).evaluate(r);
+		  if (twoPhase)
+			  candidates = and (candidates, toBitmap (argResults[i]));
+	  }
+	
+	  if (! twoPhase)
+		  return argResults;
+	
+	  //  Approximate, then verify the positional arguments.
+	
+	  for (int i=0; i<n; i++) {
+		  if (positional[i] != null)
+			  candidates = and (candidates, positional[i].approximate (r));
+	  }
+	
+	  for (int i=0; i<n; i++) {
+		  if (positional[i] != null) {
+			  positional[i].setCandidates (candidates);
+			  argResults[i] = this.args.get(i).evaluate(r);
+		  }
+	  }
+	
+	  return argResults;
+  }
+  
+  private static DocBitmap toBitmap (QryResult result) {
+	  if (result.docBitmap != null)
+		  return result.docBitmap;
+	  return DocBitmap.fromScoreList (result.docScores);
+  }
+  
+  private static DocBitmap and (DocBitmap a, DocBitmap b) {
+	  return (a == null) ? b : a.and (b);
+  }
+  
   public QryResult evaluateIndri(RetrievalModel r) throws IOException {
 	allocArgPtrs (r);
 	QryResult result = new QryResult ();
   
 	int argSize = this.argPtrs.size();
-    ArgPtr[] ptrArray = new ArgPtr[argSize];
-  
-    for (int j = 0; j < argSize; j++) {
-		ptrArray[j] = this.argPtrs.get(j);
-    }
   
-    int curSize = argSize;
+	// merge the argument score lists in docid order
+	MergeHeap merge = new MergeHeap(this.argPtrs);
+	int[] matched = new int[argSize];
+	boolean[] isMatched = new boolean[argSize];
     
     // loop until all lists reach the end
-    while (curSize > 0) {
-		int minDocid = Integer.MAX_VALUE;
-		
-		// loop list of args to find min docid
-		for (ArgPtr curPtr : ptrArray) {
-			if (curPtr.nextDoc >= curPtr.scoreList.scores.size()) {
-				continue;
-			}
-			int curDocid = curPtr.scoreList.getDocid(curPtr.nextDoc); 
-			if (curDocid < minDocid) {
-				// set new minDocid
-				minDocid = curDocid;
-			}
+    while (merge.size() > 0 && ! QueryDeadline.expired(1)) {
+		// found the min docid in this round
+		int minDocid = merge.topDocid();
+		int n = merge.popAll(matched);
+		for (int k = 0; k < n; k++) {
+			isMatched[matched[k]] = true;
 		}
 		
-		if (minDocid == Integer.MAX_VALUE) break;
-		
-		// found the min docid in this round
 		// calculate docScore
 		double docScore = 1;
 		
 		for (int i = 0; i < argSize; i++) {
-			ArgPtr curPtr = ptrArray[i];
-			int curDocid = Integer.MAX_VALUE;
-			if (curPtr.nextDoc < curPtr.scoreList.scores.size()) {
-				curDocid = curPtr.scoreList.getDocid(curPtr.nextDoc);
-			}
-			if (curDocid == minDocid) {
+			if (isMatched[i]) {
 				// get docScore
-				docScore *= curPtr.scoreList.getDocidScore(curPtr.nextDoc ++);
-				ptrArray[i] = curPtr;
-				if (curPtr.nextDoc >= curPtr.scoreList.scores.size()) {
-					curSize --;
-				}
+				ArgPtr curPtr = this.argPtrs.get(i);
+				docScore *= curPtr.scoreList.getDocidScore(curPtr.nextDoc);
+				isMatched[i] = false;
 			} else {
 				// get default score
 				docScore *= ((QryopSl)this.args.get(i)).getDefaultScore(r, minDocid);
 			}
 		}
+		merge.advance(matched, n);
 		
 		// add min docid to result
 		result.docScores.add (minDocid, Math.pow(docScore, 1 / (double)argSize));
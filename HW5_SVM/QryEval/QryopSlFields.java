@@ -0,0 +1,242 @@
+/**
+ *  This class implements the #FIELDS operator, which scores one term
+ *  over several fields as a single evidence source:
+ *
+ *    #FIELDS (0.2 apple.title 0.7 apple.body 0.1 apple.inlink)
+ *
+ *  BM25 scores BM25F: the field tfs are normalized by their own field
+ *  lengths, weighted and summed into one pseudo tf, which is saturated
+ *  once.  The idf uses the number of documents that contain the term
+ *  in any of the fields.
+ *
+ *  Indri scores a mixture of fields: the weighted average of the
+ *  smoothed probability of the term in each field.
+ *
+ *  Either way the per-field inverted lists are merged in one
+ *  docid-ordered pass, instead of one score list per field merged by
+ *  a #SUM or #WSUM.  The Indri weights are normalized, so with a single
+ *  field #FIELDS scores exactly like the term alone.  The BM25F weights
+ *  scale the pseudo tf as given, so that only holds for a single field
+ *  of weight 1.
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class QryopSlFields extends QryopSl {
+
+  private List<Double> weights = new ArrayList<Double>();
+
+  //  Collection statistics of the last evaluation, for getDefaultScore.
+
+  private String[] fields;
+  private long[] ctf;
+
+  /**
+   *  Appends an argument to the list of query operator arguments.  This
+   *  simplifies the design of some query parsing architectures.
+   *  @param {q} q The query argument (query operator) to append.
+   *  @return void
+   *  @throws IOException
+   */
+  public void add (Qryop a) {
+    this.args.add(a);
+  }
+
+  /**
+   *  Appends the weight of the next argument.
+   *  @param weight The weight of the next field.
+   */
+  public void add (double weight) {
+    this.weights.add(weight);
+  }
+
+  /**
+   *  The query arguments alternate between weights and terms.
+   *  @return True if the next query argument is a weight.
+   */
+  public boolean expectsWeight() {
+    return this.weights.size() == this.args.size();
+  }
+
+  /**
+   *  Remove the weight of a term that the query parser discarded.
+   */
+  public void removeLastWeight() {
+    this.weights.remove(this.weights.size() - 1);
+  }
+
+  /**
+   *  Fetch the inverted list of the term in each field.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return void
+   *  @throws IOException
+   */
+  public void allocArgPtrs (RetrievalModel r) throws IOException {
+
+    if (this.weights.size() != this.args.size())
+      QryEval.fatalError ("Error:  #FIELDS needs a weight for each field:  " +
+			  this.toString());
+
+    for (int i = 0; i < this.args.size(); i++) {
+      if (! (this.args.get(i) instanceof QryopIlTerm) ||
+	  ! ((QryopIlTerm) this.args.get(i)).getTerm().equals(
+	    ((QryopIlTerm) this.args.get(0)).getTerm()))
+	QryEval.fatalError ("Error:  #FIELDS arguments must be one term in " +
+			    "several fields:  " + this.toString());
+
+      ArgPtr ptri = new ArgPtr ();
+      ptri.invList = this.args.get(i).evaluate(r).invertedList;
+      ptri.nextDoc = 0;
+      this.argPtrs.add (ptri);
+    }
+  }
+
+  /**
+   *  Evaluates the query operator and returns the result.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The result of evaluating the query.
+   *  @throws IOException
+   */
+  public QryResult evaluate(RetrievalModel r) throws IOException {
+
+    if (! (r instanceof RetrievalModelBM25) && ! (r instanceof RetrievalModelIndri))
+      QryEval.fatalError ("Error:  #FIELDS requires the BM25 or Indri " +
+			  "retrieval model.");
+
+    allocArgPtrs (r);
+    QryResult result = new QryResult ();
+
+    int n = this.argPtrs.size();
+    this.fields = new String[n];
+    this.ctf = new long[n];
+    for (int i = 0; i < n; i++) {
+      this.fields[i] = this.argPtrs.get(i).invList.field;
+      this.ctf[i] = this.argPtrs.get(i).invList.ctf;
+    }
+
+    //  One pass over the merged field lists records the field tfs of
+    //  each document.  BM25F needs the number of these documents
+    //  before it can score any of them.
+
+    MergeHeap merge = new MergeHeap(this.argPtrs);
+    int[] matched = new int[n];
+    int[] docids = new int[1024];
+    int[] tfs = new int[1024 * n];
+    int docs = 0;
+
+    while (merge.size() > 0 && ! QueryDeadline.expired(1)) {
+      int docid = merge.topDocid();
+      int m = merge.popAll(matched);
+
+      if (docs == docids.length) {
+	docids = Arrays.copyOf(docids, docs * 2);
+	tfs = Arrays.copyOf(tfs, docs * 2 * n);
+      }
+      docids[docs] = docid;
+
+      for (int k = 0; k < m; k++) {
+	ArgPtr ptr = this.argPtrs.get(matched[k]);
+	tfs[docs * n + matched[k]] = ptr.invList.getTf(ptr.nextDoc);
+      }
+
+      merge.advance(matched, m);
+      docs++;
+    }
+
+    freeArgPtrs ();
+
+    if (r instanceof RetrievalModelBM25) {
+      double k_1 = r.getParameter("k_1");
+      double b = r.getParameter("b");
+      double k_3 = r.getParameter("k_3");
+      int N = QryEval.READER.numDocs();
+      int qtf = 1;
+      double idf = Math.max(0, Math.log((N - docs + 0.5) / (docs + 0.5)));
+      double user_weight = (k_3 + 1) * qtf / (k_3 + qtf);
+
+      double[] avg_doclen = new double[n];
+      for (int i = 0; i < n; i++)
+	avg_doclen[i] = QryEval.READER.getSumTotalTermFreq(this.fields[i]) /
+	  (double) QryEval.READER.getDocCount(this.fields[i]);
+
+      for (int d = 0; d < docs; d++) {
+	double tf = 0;
+	for (int i = 0; i < n; i++) {
+	  int tf_i = tfs[d * n + i];
+	  if (tf_i == 0)
+	    continue;
+	  long doclen = QryEval.docLenStore.getDocLength(this.fields[i], docids[d]);
+	  tf += this.weights.get(i) * tf_i / ((1 - b) + b * doclen / avg_doclen[i]);
+	}
+	double tf_weight = tf / (tf + k_1);
+	result.docScores.add (docids[d], idf * tf_weight * user_weight);
+      }
+    } else {
+      for (int d = 0; d < docs; d++)
+	result.docScores.add (docids[d], mixture (r, docids[d], tfs, d * n));
+    }
+
+    return result;
+  }
+
+  /**
+   *  The Indri mixture-of-fields probability of the term in a document.
+   *  A null tfs array gives the default score.
+   */
+  private double mixture(RetrievalModel r, int docid, int[] tfs, int row)
+    throws IOException {
+
+    double mu = r.getParameter("mu");
+    double lambda = r.getParameter("lambda");
+    double score = 0;
+    double totalWeight = 0;
+
+    for (int i = 0; i < this.fields.length; i++) {
+      int tf = (tfs == null) ? 0 : tfs[row + i];
+      double mleProb = this.ctf[i] /
+	(double) QryEval.READER.getSumTotalTermFreq(this.fields[i]);
+      long doclen = QryEval.docLenStore.getDocLength(this.fields[i], docid);
+      double w = this.weights.get(i);
+
+      score += w * ((1 - lambda) * (tf + mu * mleProb) / (doclen + mu)
+		    + lambda * mleProb);
+      totalWeight += w;
+    }
+
+    return (totalWeight > 0) ? score / totalWeight : 0.0;
+  }
+
+  /*
+   *  Calculate the default score for the specified document if it
+   *  does not match the query operator.  It uses the collection
+   *  statistics of the last evaluation.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @param docid The internal id of the document that needs a default score.
+   *  @return The default score.
+   */
+  public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
+
+    if (r instanceof RetrievalModelIndri && this.fields != null)
+      return mixture (r, (int) docid, null, 0);
+
+    return 0.0;
+  }
+
+  /*
+   *  Return a string version of this query operator.
+   *  @return The string version of this query operator.
+   */
+  public String toString(){
+
+    String result = new String ();
+
+    for (int i = 0; i < this.args.size(); i++) {
+      if (i < this.weights.size())
+	result += this.weights.get(i) + " ";
+      result += this.args.get(i).toString() + " ";
+    }
+
+    return ("#FIELDS( " + result + ")");
+  }
+}
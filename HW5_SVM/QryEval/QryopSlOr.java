@@ -49,7 +49,8 @@ public class QryopSlOr extends QryopSl {
 
   /**
    *  Evaluates the query operator for boolean retrieval models,
-   *  including any child operators and returns the result.
+   *  including any child operators and returns the result.  The
+   *  result is a bitmap of the documents that match any argument.
    *  @param r A retrieval model that controls how the operator behaves.
    *  @return The result of evaluating the query.
    *  @throws IOException
@@ -57,63 +58,91 @@ public class QryopSlOr extends QryopSl {
   public QryResult evaluateBoolean (RetrievalModel r) throws IOException {
 
 	  //  Initialization
-	  allocArgPtrs (r);
 	  QryResult result = new QryResult ();
+	  DocBitmap docs = new DocBitmap ();
 	
-	  Set<Integer> idSet = new HashSet<Integer>();
-	  
-	  for (int i = 0; i < this.argPtrs.size(); i++) {
-		  ArgPtr ptr = this.argPtrs.get(i);
-		  for ( ; ptr.nextDoc < ptr.scoreList.scores.size(); ptr.nextDoc ++) {
-			  int ptrDocid = ptr.scoreList.getDocid(ptr.nextDoc);
-			  double docScore = 1.0;
-			  if (!idSet.contains(ptrDocid)) {
-				  result.docScores.add (ptrDocid, docScore);
-				  idSet.add(ptrDocid);
-			  }
-		  }
+	  for (int i = 0; i < this.args.size(); i++) {
+		  docs = docs.or (evaluateArgBitmap (i, r));
 	  }
 	
-	  idSet.clear();
-	  freeArgPtrs ();
+	  result.docBitmap = docs;
 	
 	  return result;
   }
   
+  /**
+   *  Evaluates the query operator for the ranked boolean retrieval
+   *  model.  A document's score is the maximum of its argument scores.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The result of evaluating the query.
+   *  @throws IOException
+   */
   public QryResult evaluateRankedBoolean (RetrievalModel r) throws IOException {
 
 	  //  Initialization
 	
 	  allocArgPtrs (r);
+	  
+	  if (ScoreAccumulator.useTaat (this.argPtrs)) {
+		  return evaluateRankedBooleanTaat (r);
+	  }
+	  
 	  QryResult result = new QryResult ();
 	
-	  Map<Integer, Double> idMap = new HashMap<Integer, Double>();
+	  MergeHeap merge = new MergeHeap (this.argPtrs);
+	  int[] matched = new int[this.argPtrs.size()];
 	  
-	  for (int i = 0; i < this.argPtrs.size(); i++) {
-		  ArgPtr ptr = this.argPtrs.get(i);
-		  for ( ; ptr.nextDoc < ptr.scoreList.scores.size(); ptr.nextDoc ++) {
-			  int ptrDocid = ptr.scoreList.getDocid(ptr.nextDoc);
-			  double docScore = ptr.scoreList.getDocidScore(ptr.nextDoc);
-			  
-			  if (!idMap.containsKey(ptrDocid) || idMap.get(ptrDocid) < docScore) {
-				  idMap.put(ptrDocid, docScore);
+	  while (merge.size() > 0 && ! QueryDeadline.expired(1)) {
+		  int docid = merge.topDocid ();
+		  int n = merge.popAll (matched);
+		  double docScore = 0.0;
+		  
+		  for (int k = 0; k < n; k++) {
+			  ArgPtr ptr = this.argPtrs.get (matched[k]);
+			  double ptrScore = ptr.scoreList.getDocidScore (ptr.nextDoc);
+			  if (k == 0 || ptrScore > docScore) {
+				  docScore = ptrScore;
 			  }
 		  }
-	  }
-	  
-	  Iterator itr = idMap.entrySet().iterator();
-	  while (itr.hasNext()) {
-	      Map.Entry<Integer, Double> pairs = (Map.Entry)itr.next();
-	      result.docScores.add(pairs.getKey(), pairs.getValue());
-	      itr.remove(); // avoids a ConcurrentModificationException
+		  merge.advance (matched, n);
+		  result.docScores.add (docid, docScore);
 	  }
 	
-	  idMap.clear();
 	  freeArgPtrs ();
 	
 	  return result;
   }
 
+  /**
+   *  Evaluates the query operator for the ranked boolean retrieval
+   *  model term-at-a-time, keeping the maximum score of each document
+   *  in a dense accumulator.  The arguments must already be evaluated
+   *  by allocArgPtrs.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The result of evaluating the query.
+   *  @throws IOException
+   */
+  public QryResult evaluateRankedBooleanTaat (RetrievalModel r) throws IOException {
+
+	  QryResult result = new QryResult ();
+	  ScoreAccumulator acc = ScoreAccumulator.get ();
+	  
+	  for (ArgPtr ptr : this.argPtrs) {
+		  ScoreList scoreList = ptr.scoreList;
+		  int size = scoreList.scores.size ();
+		  for (int i = 0; i < size; i++) {
+			  acc.max (scoreList.getDocid (i), scoreList.getDocidScore (i));
+		  }
+		  if (QueryDeadline.expired (size))
+			  break;
+	  }
+	  
+	  result.docScores = acc.toScoreList ();
+	  freeArgPtrs ();
+	  
+	  return result;
+  }
+
   /*
    *  Calculate the default score for the specified document if it
    *  does not match the query operator.  This score is 0 for many
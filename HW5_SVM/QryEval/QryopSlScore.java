@@ -75,18 +75,14 @@ public class QryopSlScore extends QryopSl {
 
     QryResult result = args.get(0).evaluate(r);
 
-    // Each pass of the loop computes a score for one document. Note:
-    // If the evaluate operation above returned a score list (which is
-    // very possible), this loop gets skipped.
-
-    for (int i = 0; i < result.invertedList.df; i++) {
-
-      // DIFFERENT RETRIEVAL MODELS IMPLEMENT THIS DIFFERENTLY. 
-      // Unranked Boolean. All matching documents get a score of 1.0.
-
-      result.docScores.add(result.invertedList.postings.get(i).docid,
-			   (float) 1.0);
-    }
+    // DIFFERENT RETRIEVAL MODELS IMPLEMENT THIS DIFFERENTLY. 
+    // Unranked Boolean. All matching documents get a score of 1.0,
+    // so only the set of matching documents is kept, as a bitmap.
+    // If the evaluate operation above returned a bitmap or a score
+    // list (which is very possible), it is passed through.
+
+    if (result.docBitmap == null && result.invertedList.df > 0)
+      result.docBitmap = DocBitmap.fromInvList(result.invertedList);
 
     // The SCORE operator should not return a populated inverted list.
     // If there is one, replace it with an empty inverted list.
@@ -0,0 +1,288 @@
+/**
+ *  This class implements the #SDM (sequential dependence model)
+ *  operator for the Indri retrieval model.  #SDM (t1 t2 ... tn) scores
+ *  documents exactly as the expanded query
+ *
+ *    #WAND (w1 #AND (t1 ... tn)
+ *           w2 #AND (#NEAR/1 (t1 t2) ... #NEAR/1 (tn-1 tn))
+ *           w3 #AND (#WINDOW/8 (t1 t2) ... #WINDOW/8 (tn-1 tn)))
+ *
+ *  but reads the inverted list of each term once.  A single merge over
+ *  the term lists records, for each document, the tf of every term and
+ *  the #NEAR/1 and #WINDOW/8 tf of every adjacent pair; the pair ctfs
+ *  that the smoothing needs are known when the merge ends, so the
+ *  documents are scored afterwards from the recorded statistics.
+ *
+ *  The weights are the Indri:sdmWeights parameter (default 0.8, 0.1,
+ *  0.1).  The arguments must be terms in the same field.  With a
+ *  single term there are no pairs, and #SDM scores like #AND (t1).
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class QryopSlSdm extends QryopSl {
+
+  public static final int ORDERED_DIST = 1;
+  public static final int UNORDERED_DIST = 8;
+
+  //  Collection statistics of the last evaluation, for getDefaultScore.
+
+  private String field;
+  private long[] termCtf;
+  private long[] nearCtf;
+  private long[] windowCtf;
+
+  /**
+   *  It is convenient for the constructor to accept a variable number
+   *  of arguments. Thus new QryopSlSdm (arg1, arg2, arg3, ...).
+   *  @param q A query argument (a query operator).
+   */
+  public QryopSlSdm(Qryop... q) {
+    for (int i = 0; i < q.length; i++)
+      this.args.add(q[i]);
+  }
+
+  /**
+   *  Appends an argument to the list of query operator arguments.  This
+   *  simplifies the design of some query parsing architectures.
+   *  @param {q} q The query argument (query operator) to append.
+   *  @return void
+   *  @throws IOException
+   */
+  public void add (Qryop a) {
+    this.args.add(a);
+  }
+
+  /**
+   *  Fetch the positional inverted list of each term argument.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return void
+   *  @throws IOException
+   */
+  public void allocArgPtrs (RetrievalModel r) throws IOException {
+    for (int i = 0; i < this.args.size(); i++) {
+      if (! (this.args.get(i) instanceof QryopIlTerm))
+	QryEval.fatalError ("Error:  #SDM arguments must be terms:  " +
+			    this.toString());
+
+      ArgPtr ptri = new ArgPtr ();
+      ptri.invList = this.args.get(i).evaluate(r).invertedList;
+      ptri.nextDoc = 0;
+
+      if (i > 0 && ! ptri.invList.field.equals (this.argPtrs.get(0).invList.field))
+	QryEval.fatalError ("Error: Arguments must be in the same field:  " +
+			    this.toString());
+
+      this.argPtrs.add (ptri);
+    }
+  }
+
+  /**
+   *  Evaluates the query operator and returns the result.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The result of evaluating the query.
+   *  @throws IOException
+   */
+  public QryResult evaluate(RetrievalModel r) throws IOException {
+
+    if (! (r instanceof RetrievalModelIndri))
+      QryEval.fatalError ("Error:  #SDM requires the Indri retrieval model.");
+
+    allocArgPtrs (r);
+    QryResult result = new QryResult ();
+
+    int n = this.argPtrs.size();
+    if (n == 0)
+      return result;
+
+    int pairs = n - 1;
+    int width = n + 2 * pairs;	// term tfs, #NEAR/1 tfs, #WINDOW/8 tfs
+
+    this.field = this.argPtrs.get(0).invList.field;
+    this.termCtf = new long[n];
+    this.nearCtf = new long[pairs];
+    this.windowCtf = new long[pairs];
+    for (int i = 0; i < n; i++)
+      this.termCtf[i] = this.argPtrs.get(i).invList.ctf;
+
+    //  One pass over the merged term lists.  Each document that
+    //  contains a term gets a row of statistics in stats.
+
+    MergeHeap merge = new MergeHeap(this.argPtrs);
+    int[] matched = new int[n];
+    int[][] pos = new int[n][];
+    int[] docids = new int[1024];
+    int[] stats = new int[1024 * width];
+    int docs = 0;
+
+    while (merge.size() > 0 && ! QueryDeadline.expired(1)) {
+      int docid = merge.topDocid();
+      int m = merge.popAll(matched);
+
+      if (docs == docids.length) {
+	docids = Arrays.copyOf(docids, docs * 2);
+	stats = Arrays.copyOf(stats, docs * 2 * width);
+      }
+      docids[docs] = docid;
+      int row = docs * width;
+      Arrays.fill(pos, null);
+
+      for (int k = 0; k < m; k++) {
+	ArgPtr ptr = this.argPtrs.get(matched[k]);
+	stats[row + matched[k]] = ptr.invList.getTf(ptr.nextDoc);
+	pos[matched[k]] = ptr.invList.getPositions(ptr.nextDoc);
+      }
+
+      for (int j = 0; j < pairs; j++) {
+	if (pos[j] == null || pos[j + 1] == null)
+	  continue;
+	int near = countOrdered(pos[j], pos[j + 1]);
+	int window = countUnordered(pos[j], pos[j + 1]);
+	stats[row + n + j] = near;
+	stats[row + n + pairs + j] = window;
+	this.nearCtf[j] += near;
+	this.windowCtf[j] += window;
+      }
+
+      merge.advance(matched, m);
+      docs++;
+    }
+
+    freeArgPtrs ();
+
+    //  Score the recorded documents.
+
+    for (int d = 0; d < docs; d++)
+      result.docScores.add (docids[d], score (r, docids[d], stats, d * width));
+
+    return result;
+  }
+
+  /**
+   *  Count the #NEAR/1 matches of two position lists, as QryopIlNear
+   *  does: each position of the second term is used at most once.
+   */
+  private static int countOrdered(int[] first, int[] second) {
+    int count = 0;
+    int j = 0;
+
+    for (int i = 0; i < first.length && j < second.length; i++) {
+      while (j < second.length && second[j] <= first[i])
+	j++;
+      if (j < second.length && second[j] - first[i] <= ORDERED_DIST) {
+	count++;
+	j++;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   *  Count the #WINDOW/8 matches of two position lists, as
+   *  QryopIlWindow does: after a match both lists move past it.
+   */
+  private static int countUnordered(int[] first, int[] second) {
+    int count = 0;
+    int i = 0;
+    int j = 0;
+
+    while (i < first.length && j < second.length) {
+      if (Math.abs(first[i] - second[j]) >= UNORDERED_DIST) {
+	if (first[i] <= second[j])
+	  i++;
+	else
+	  j++;
+      } else {
+	count++;
+	i++;
+	j++;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   *  The score of a document from its row of statistics, combined in
+   *  the same order as the expanded query.  A null row gives the
+   *  default score.
+   */
+  private double score(RetrievalModel r, long docid, int[] stats, int row)
+    throws IOException {
+
+    RetrievalModelIndri indri = (RetrievalModelIndri) r;
+    double[] weights = indri.getSdmWeights();
+    int n = this.termCtf.length;
+    int pairs = n - 1;
+    long doclen = QryEval.docLenStore.getDocLength(this.field, (int) docid);
+    double length = QryEval.READER.getSumTotalTermFreq(this.field);
+
+    double docScore = 1;
+    double totalWeight = 0;
+
+    for (int c = 0; c < 3; c++) {
+      int size = (c == 0) ? n : pairs;
+      if (size == 0)
+	continue;
+
+      long[] ctf = (c == 0) ? this.termCtf : (c == 1) ? this.nearCtf : this.windowCtf;
+      int offset = (c == 0) ? 0 : (c == 1) ? n : n + pairs;
+      double argScore = 1;
+
+      for (int i = 0; i < size; i++) {
+	int tf = (stats == null) ? 0 : stats[row + offset + i];
+	argScore *= probability(r, tf, ctf[i] / length, doclen);
+      }
+
+      docScore *= Math.pow(Math.pow(argScore, 1 / (double) size), weights[c]);
+      totalWeight += weights[c];
+    }
+
+    return Math.pow(docScore, 1 / totalWeight);
+  }
+
+  /**
+   *  The smoothed Indri probability of a term or pair in a document.
+   */
+  private static double probability(RetrievalModel r, int tf, double mleProb,
+				    long doclen) {
+    double mu = r.getParameter("mu");
+    double lambda = r.getParameter("lambda");
+
+    return (1 - lambda) * (tf + mu * mleProb) / (doclen + mu)
+      + lambda * mleProb;
+  }
+
+  /*
+   *  Calculate the default score for the specified document if it
+   *  does not match the query operator.  It uses the collection
+   *  statistics of the last evaluation.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @param docid The internal id of the document that needs a default score.
+   *  @return The default score.
+   */
+  public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
+
+    if (r instanceof RetrievalModelIndri && this.termCtf != null &&
+	this.termCtf.length > 0)
+      return score (r, docid, null, 0);
+
+    return 0.0;
+  }
+
+  /*
+   *  Return a string version of this query operator.
+   *  @return The string version of this query operator.
+   */
+  public String toString(){
+
+    String result = new String ();
+
+    for (Iterator<Qryop> i = this.args.iterator(); i.hasNext(); )
+      result += (i.next().toString() + " ");
+
+    return ("#SDM( " + result + ")");
+  }
+}
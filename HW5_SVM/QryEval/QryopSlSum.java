@@ -36,66 +36,60 @@ public class QryopSlSum extends QryopSl {
   public QryResult evaluate(RetrievalModel r) throws IOException {
 	//  Initialization
 	allocArgPtrs (r);
-	QryResult result = new QryResult ();
-	
-	// store the current ptr to list of each argument
-	List<ArgPtr> ptrList = new ArrayList<ArgPtr>(this.argPtrs.size());
 	
-	for (int j = 0; j < this.argPtrs.size(); j++) {
-		ptrList.add(j, this.argPtrs.get(j));
+	if (ScoreAccumulator.useTaat(this.argPtrs)) {
+		return evaluateTaat(r);
 	}
 	
-	while (ptrList.size() > 0) {
-		int minDocid = Integer.MAX_VALUE;
-		Map<Integer, ArgPtr> minPtrMap = new HashMap<Integer, ArgPtr>(this.argPtrs.size());
-		
-		// loop list of args to find min docid
-		int j = 0;
-		for (ArgPtr curPtr : ptrList) {
-			int curDocid = curPtr.scoreList.getDocid(curPtr.nextDoc); 
-			if (curDocid < minDocid) {
-				// set new minDocid
-				minPtrMap.clear();
-				minDocid = curDocid;
-				minPtrMap.put(j, curPtr);
-			} else if (curDocid == minDocid) {
-				// add cur docid to minPtrList
-				minPtrMap.put(j, curPtr);
-			}
-			j++;
-		}
-		
+	QryResult result = new QryResult ();
+	
+	// merge the argument score lists in docid order
+	MergeHeap merge = new MergeHeap(this.argPtrs);
+	int[] matched = new int[this.argPtrs.size()];
+	
+	while (merge.size() > 0 && ! QueryDeadline.expired(1)) {
 		// found the min docid in this round
-		// calculate docScore
-		double docScore = 0;
-		PriorityQueue<Integer> rmQueue = 
-				new PriorityQueue<Integer>(minPtrMap.size(), Collections.reverseOrder());
+		int minDocid = merge.topDocid();
+		int n = merge.popAll(matched);
 		
-		for (int index : minPtrMap.keySet()) {
-			ArgPtr ptr = minPtrMap.get(index);
+		// calculate docScore from the args that contain minDocid
+		double docScore = 0;
+		for (int k = 0; k < n; k++) {
+			ArgPtr ptr = this.argPtrs.get(matched[k]);
 			docScore += ptr.scoreList.getDocidScore(ptr.nextDoc);
-			// incre ptr in minPtrList
-			// remove list if no records left, otherwise update ptrList
-			ptr.nextDoc ++;
-			if (ptr.nextDoc >= ptr.scoreList.scores.size()) {
-				//ptrList.remove(index);
-				rmQueue.add(index);
-			} else {
-				ptrList.set(index, ptr);
-			}
-		}
-		
-		// remove lists that have reached the end
-		while (!rmQueue.isEmpty()) {
-			int index = rmQueue.poll();
-			ptrList.remove(index);
 		}
+		merge.advance(matched, n);
 		
 		// add min docid to result
-		if (minDocid != Integer.MAX_VALUE) {
-			result.docScores.add (minDocid, docScore);
+		result.docScores.add (minDocid, docScore);
+	}
+	freeArgPtrs();
+	return result;
+  }
+  
+  /**
+   *  Evaluates the query operator term-at-a-time: each argument's
+   *  score list is added into a dense accumulator in turn.  The
+   *  arguments must already be evaluated by allocArgPtrs.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The result of evaluating the query.
+   *  @throws IOException
+   */
+  public QryResult evaluateTaat(RetrievalModel r) throws IOException {
+	QryResult result = new QryResult ();
+	ScoreAccumulator acc = ScoreAccumulator.get();
+	
+	for (ArgPtr ptr : this.argPtrs) {
+		ScoreList scoreList = ptr.scoreList;
+		int size = scoreList.scores.size();
+		for (int i = 0; i < size; i++) {
+			acc.add(scoreList.getDocid(i), scoreList.getDocidScore(i));
 		}
+		if (QueryDeadline.expired(size))
+			break;
 	}
+	
+	result.docScores = acc.toScoreList();
 	freeArgPtrs();
 	return result;
   }
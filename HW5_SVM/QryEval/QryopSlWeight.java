@@ -47,6 +47,10 @@ public class QryopSlWeight extends QryopSl {
 		this.isWeight = isWeight;
 	}
 
+	public boolean getIsWand() {
+		return this.WAND;
+	}
+
 	/**
 	 * Evaluates the query operator, including any child operators and returns
 	 * the result.
@@ -61,34 +65,26 @@ public class QryopSlWeight extends QryopSl {
 		QryResult result = new QryResult();
 		
 		int argSize = this.argPtrs.size();
-		ArgPtr[] ptrArray = new ArgPtr[argSize];
 
-		for (int j = 0; j < argSize; j++) {
-			ptrArray[j] = this.argPtrs.get(j);
+		double totalWeight = 0;
+		for (double w : this.weight) {
+			totalWeight += w;
 		}
 
-		int curSize = argSize;
+		// merge the argument score lists in docid order
+		MergeHeap merge = new MergeHeap(this.argPtrs);
+		int[] matched = new int[argSize];
+		boolean[] isMatched = new boolean[argSize];
 
 		// loop until all lists reach the end
-		while (curSize > 0) {
-			int minDocid = Integer.MAX_VALUE;
-
-			// loop list of args to find min docid
-			for (ArgPtr curPtr : ptrArray) {
-				if (curPtr.nextDoc >= curPtr.scoreList.scores.size()) {
-					continue;
-				}
-				int curDocid = curPtr.scoreList.getDocid(curPtr.nextDoc);
-				if (curDocid < minDocid) {
-					// set new minDocid
-					minDocid = curDocid;
-				}
+		while (merge.size() > 0 && ! QueryDeadline.expired(1)) {
+			// found the min docid in this round
+			int minDocid = merge.topDocid();
+			int n = merge.popAll(matched);
+			for (int k = 0; k < n; k++) {
+				isMatched[matched[k]] = true;
 			}
 
-			if (minDocid == Integer.MAX_VALUE)
-				break;
-
-			// found the min docid in this round
 			// calculate docScore
 			double docScore;
 
@@ -98,45 +94,24 @@ public class QryopSlWeight extends QryopSl {
 				docScore = 0;
 
 			for (int i = 0; i < argSize; i++) {
-				ArgPtr curPtr = ptrArray[i];
-				int curDocid = Integer.MAX_VALUE;
-				if (curPtr.nextDoc < curPtr.scoreList.scores.size()) {
-					curDocid = curPtr.scoreList.getDocid(curPtr.nextDoc);
-				}
-
-				if (curDocid == minDocid) {
+				double argScore;
+				if (isMatched[i]) {
 					// get docScore
-					if (WAND) {
-						docScore *= Math.pow(curPtr.scoreList
-								.getDocidScore(curPtr.nextDoc++), this.weight
-								.get(i));
-					} else {
-						docScore += curPtr.scoreList
-								.getDocidScore(curPtr.nextDoc++)
-								* this.weight.get(i);
-					}
-					ptrArray[i] = curPtr;
-					if (curPtr.nextDoc >= curPtr.scoreList.scores.size()) {
-						curSize--;
-					}
+					ArgPtr curPtr = this.argPtrs.get(i);
+					argScore = curPtr.scoreList.getDocidScore(curPtr.nextDoc);
+					isMatched[i] = false;
 				} else {
 					// get default score
-					if (WAND) {
-						docScore *= Math.pow(((QryopSl) this.args.get(i))
-								.getDefaultScore(r, minDocid), this.weight
-								.get(i));
-					} else {
-						docScore += ((QryopSl) this.args.get(i))
-								.getDefaultScore(r, minDocid)
-								* this.weight.get(i);
-					}
+					argScore = ((QryopSl) this.args.get(i)).getDefaultScore(
+							r, minDocid);
+				}
+				if (WAND) {
+					docScore *= Math.pow(argScore, this.weight.get(i));
+				} else {
+					docScore += argScore * this.weight.get(i);
 				}
 			}
-
-			double totalWeight = 0;
-			for (double w : this.weight) {
-				totalWeight += w;
-			}
+			merge.advance(matched, n);
 
 			if (totalWeight > 0) {
 				// add min docid to result
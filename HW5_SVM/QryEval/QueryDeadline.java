@@ -0,0 +1,85 @@
+/**
+ *  This class implements the per-query latency budget.  QryEval starts
+ *  a deadline before it evaluates a query, and the query operators
+ *  check it cooperatively in their evaluation loops.
+ *
+ *  Once the deadline has passed, every check returns true and the
+ *  operators stop early and return what they have found so far:
+ *  docid-ordered merges return the documents before the docid they
+ *  stopped at, term-at-a-time and impact-ordered evaluation return the
+ *  scores accumulated from the lists they finished.  QryEval then marks
+ *  the result as partial.
+ *
+ *  Reading the clock on every document would cost more than some of
+ *  the loops it guards, so callers report the work they have done and
+ *  the clock is read about once per CHECK_INTERVAL units of work.
+ */
+
+public class QueryDeadline {
+
+  private static final int CHECK_INTERVAL = 1024;
+
+  private static long deadline = Long.MAX_VALUE;	// System.nanoTime()
+  private static boolean expired = false;
+  private static long work = 0;
+
+  /**
+   *  Start the budget of a new query.
+   *  @param budgetMillis The time budget in milliseconds, or 0 for no
+   *  budget.
+   */
+  public static void start(long budgetMillis) {
+    deadline = (budgetMillis > 0) ?
+      System.nanoTime() + budgetMillis * 1000000L : Long.MAX_VALUE;
+    expired = false;
+    work = 0;
+  }
+
+  /**
+   *  Report work done and check whether the query is out of time.
+   *  @param units The amount of work done since the last check, e.g.
+   *  the number of documents or postings processed.
+   *  @return true if evaluation should stop.
+   */
+  public static boolean expired(int units) {
+    if (expired)
+      return true;
+    if (deadline == Long.MAX_VALUE)
+      return false;
+
+    work += units;
+    if (work < CHECK_INTERVAL)
+      return false;
+
+    work = 0;
+    expired = System.nanoTime() >= deadline;
+    return expired;
+  }
+
+  /**
+   *  Whether any check of the current query found it out of time, i.e.
+   *  whether its result is partial.
+   *  @return true if the query ran out of time.
+   */
+  public static boolean hasExpired() {
+    return expired;
+  }
+
+  /**
+   *  The time left for the current query, for work that waits rather
+   *  than loops, e.g. on another thread.  It does not count as a check.
+   *  @return Nanoseconds, or Long.MAX_VALUE if there is no budget.
+   */
+  public static long remainingNanos() {
+    return (deadline == Long.MAX_VALUE) ?
+      Long.MAX_VALUE : deadline - System.nanoTime();
+  }
+
+  /**
+   *  Mark the current query as out of time, for callers that found it
+   *  out of time with remainingNanos.
+   */
+  public static void expire() {
+    expired = true;
+  }
+}
@@ -10,6 +10,7 @@ import org.apache.lucene.search.TopScoreDocCollector;
 
 public class QueryExpansion {
 	private int fbDocs, fbTerms, fbMu;
+	private ForwardIndex.DocVector docVector = new ForwardIndex.DocVector();
 
 	public QueryExpansion(int fbDocs, int fbTerms, int fbMu) {
 		this.fbDocs = fbDocs;
@@ -63,6 +64,40 @@ public class QueryExpansion {
 		return qrMap;
 	}
 
+	/**
+	 * Add the score of a term in the i'th feedback document.
+	 * 
+	 * @param termFreq
+	 *            The term's tf in the document.
+	 * @param ctf
+	 *            The term's ctf in the collection.
+	 */
+	private void addTermScore(Map<String, Double> termScore, String term,
+			long termFreq, long ctf, long clength, double[] docConst, int i,
+			int len) {
+		if (term.contains(".") || term.contains(",")) {
+			return;
+		}
+
+		double probMle = ctf / (double) clength;
+
+		if (!termScore.containsKey(term)) {
+			// first time the term occurs
+			double tempScore = termFreq * docConst[i];
+			// add MLE of p(t|C) for all the docs
+			for (int doc = 0; doc < len; doc++) {
+				tempScore += this.fbMu * probMle * docConst[doc];
+			}
+			tempScore *= Math.log(1 / probMle);
+			termScore.put(term, tempScore);
+		} else {
+			// update term frequency
+			double tempScore = termScore.get(term);
+			tempScore += (termFreq * docConst[i] * Math.log(1 / probMle));
+			termScore.put(term, tempScore);
+		}
+	}
+
 	/**
 	 * Construct an expanded query from ranked result
 	 * 
@@ -74,7 +109,9 @@ public class QueryExpansion {
 	public String constructExpandQuery(List<String> sResult) throws IOException {
 		Map<String, Double> termScore = new HashMap<String, Double>();
 		final String field = "body";
-		int len = Math.min(sResult.size(), this.fbDocs);
+		// a query that matched nothing (e.g. one that ran out of time) has
+		// no sorted result
+		int len = (sResult == null) ? 0 : Math.min(sResult.size(), this.fbDocs);
 		double[] docConst = new double[len];
 		DocLengthStore doclengthStore = QryEval.docLenStore;
 		long clength = QryEval.READER.getSumTotalTermFreq(field);
@@ -90,39 +127,31 @@ public class QueryExpansion {
 		}
 
 		// iterate all doc to calcalate term score
+		ForwardIndex index = QryEval.forwardIndex;
+		int f = (index == null) ? -1 : index.fieldNumber(field);
+
 		for (int i = 0; i < len; i++) {
 			String[] words = sResult.get(i).trim().split(":");
 			int intid = Integer.parseInt(words[2]);
+
+			if (f >= 0) {
+				// the forward index has the field's term ids and statistics
+				index.read(intid, f, this.docVector);
+				for (int j = 0; j < this.docVector.size; j++) {
+					int termId = this.docVector.termIds[j];
+					addTermScore(termScore, index.term(termId),
+							this.docVector.tfs[j], index.ctf(termId), clength,
+							docConst, i, len);
+				}
+				continue;
+			}
+
 			TermVector tv = new TermVector(intid, field);
 
 			// iterate all terms in doc
 			for (int j = 1; j < tv.stemsLength(); j++) {
-				String term = tv.stemString(j);
-
-				if (term.contains(".") || term.contains(",")) {
-					continue;
-				}
-
-				long termFreq = tv.stemFreq(j);
-				long ctf = tv.totalStemFreq(j);
-				double probMle = ctf / (double) clength;
-
-				if (!termScore.containsKey(term)) {
-					// first time the term occurs
-					double tempScore = termFreq * docConst[i];
-					// add MLE of p(t|C) for all the docs
-					for (int doc = 0; doc < len; doc++) {
-						tempScore += this.fbMu * probMle * docConst[doc];
-					}
-					tempScore *= Math.log(1 / probMle);
-					termScore.put(term, tempScore);
-				} else {
-					// update term frequency
-					double tempScore = termScore.get(term);
-					tempScore += (termFreq * docConst[i] * Math
-							.log(1 / probMle));
-					termScore.put(term, tempScore);
-				}
+				addTermScore(termScore, tv.stemString(j), tv.stemFreq(j),
+						tv.totalStemFreq(j), clength, docConst, i, len);
 			}
 		}
 
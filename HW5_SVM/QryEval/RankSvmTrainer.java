@@ -0,0 +1,222 @@
+import java.io.*;
+import java.nio.DoubleBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Trains a linear ranking SVM in the JVM, from a FeatureMatrix, and writes
+ * the model in the svm_rank format, so it can replace svm_rank_learn. It
+ * minimizes the svm_rank objective
+ *
+ * 0.5 * ||w||^2 + C / n * sum of max(0, 1 - w * (x_i - x_j))
+ *
+ * over the pairs of documents i, j of the same query with label i > label
+ * j, where n is the number of queries. The optimizer is a projected
+ * subgradient descent with step 1/t (the objective is 1-strongly convex);
+ * the subgradient of each query is computed on a worker pool, and the
+ * weights with the lowest objective are kept.
+ *
+ * svm_rank_learn stops when its solution is within a tolerance (-e) of the
+ * optimum. Subgradient descent has no such bound and its objective does not
+ * decrease steadily, so a fixed number of steps (letor:svmRankIterations)
+ * replaces the tolerance.
+ */
+public class RankSvmTrainer {
+	private FeatureMatrix matrix;
+	private int featureNum;
+	private double c;
+	private int threads;
+
+	public RankSvmTrainer(FeatureMatrix matrix, double c, int threads) {
+		this.matrix = matrix;
+		this.featureNum = matrix.featureNum;
+		this.c = c;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Train the weights.
+	 *
+	 * @param iterations
+	 *            The number of subgradient steps.
+	 * @return The weights, indexed by feature index - 1.
+	 */
+	public double[] train(int iterations) throws Exception {
+		int n = matrix.queries();
+		long pairs = 0;
+		for (int q = 0; q < n; q++) {
+			pairs += countPairs(q);
+		}
+
+		double[] w = new double[featureNum];
+		double[] best = w.clone();
+		double bestObjective = c / Math.max(n, 1) * pairs;	// w = 0
+		// the optimum lies in the ball where 0.5 * ||w||^2 <= objective(0)
+		double radius = Math.sqrt(2 * bestObjective);
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "svm");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		int steps = 0;
+
+		try {
+			// score w, then step from it; the weights of the last step are
+			// scored without stepping further
+			for (int t = 1; pairs > 0; t++) {
+				double[] sum = subgradient(pool, w);
+				double objective = 0.5 * dot(w, w) + c / n * sum[featureNum];
+				if (objective < bestObjective) {
+					bestObjective = objective;
+					best = w.clone();
+				}
+				if (t > iterations) {
+					break;
+				}
+
+				// w -= (w - C / n * sum) / t, then project onto the ball
+				double[] next = new double[featureNum];
+				for (int k = 0; k < featureNum; k++) {
+					next[k] = (1 - 1.0 / t) * w[k] + c / n * sum[k] / t;
+				}
+				double norm = Math.sqrt(dot(next, next));
+				if (norm > radius) {
+					for (int k = 0; k < featureNum; k++) {
+						next[k] *= radius / norm;
+					}
+				}
+				w = next;
+				steps++;
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		System.out.println(String.format(
+				"RankSVM: %d queries, %d pairs, %d iterations, objective %.6f",
+				n, pairs, steps, bestObjective));
+		return best;
+	}
+
+	/**
+	 * The sum of x_i - x_j over the pairs with a margin below 1 under the
+	 * weights w, followed by their total hinge loss, over all queries.
+	 */
+	private double[] subgradient(ExecutorService pool, double[] w)
+			throws Exception {
+		List<Future<double[]>> futures = new ArrayList<Future<double[]>>();
+		for (int part = 0; part < threads; part++) {
+			futures.add(pool.submit(new SubgradientTask(w, part)));
+		}
+		double[] sum = new double[featureNum + 1];
+		for (Future<double[]> future : futures) {
+			double[] partial = future.get();
+			for (int k = 0; k <= featureNum; k++) {
+				sum[k] += partial[k];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Computes the subgradient terms of every threads'th query, starting
+	 * at part. The result holds the sum of x_i - x_j over the pairs with a
+	 * margin below 1, followed by their total hinge loss.
+	 */
+	private class SubgradientTask implements Callable<double[]> {
+		private double[] w;
+		private int part;
+
+		SubgradientTask(double[] w, int part) {
+			this.w = w;
+			this.part = part;
+		}
+
+		public double[] call() {
+			double[] sum = new double[featureNum + 1];
+
+			for (int q = part; q < matrix.queries(); q += threads) {
+				int start = matrix.queryStart[q];
+				int docs = matrix.queryStart[q + 1] - start;
+				int[] labels = matrix.labels;
+				double[] scores = new double[docs];
+				int[] coef = new int[docs];
+
+				for (int k = 0; k < featureNum; k++) {
+					DoubleBuffer column = matrix.columns[k];
+					for (int i = 0; i < docs; i++) {
+						scores[i] += w[k] * column.get(start + i);
+					}
+				}
+				for (int i = 0; i < docs; i++) {
+					for (int j = 0; j < docs; j++) {
+						if (labels[start + i] <= labels[start + j])
+							continue;
+						double margin = 1 - (scores[i] - scores[j]);
+						if (margin > 0) {
+							sum[featureNum] += margin;
+							coef[i]++;
+							coef[j]--;
+						}
+					}
+				}
+				for (int k = 0; k < featureNum; k++) {
+					DoubleBuffer column = matrix.columns[k];
+					for (int i = 0; i < docs; i++) {
+						sum[k] += coef[i] * column.get(start + i);
+					}
+				}
+			}
+			return sum;
+		}
+	}
+
+	private long countPairs(int q) {
+		long pairs = 0;
+		for (int i = matrix.queryStart[q]; i < matrix.queryStart[q + 1]; i++) {
+			for (int j = matrix.queryStart[q]; j < matrix.queryStart[q + 1]; j++) {
+				if (matrix.labels[i] > matrix.labels[j])
+					pairs++;
+			}
+		}
+		return pairs;
+	}
+
+	private static double dot(double[] a, double[] b) {
+		double s = 0;
+		for (int k = 0; k < a.length; k++) {
+			s += a[k] * b[k];
+		}
+		return s;
+	}
+
+	/**
+	 * Write the weights as an svm_rank (SVM-light V6.20, linear kernel)
+	 * model file, which svm_rank_classify reads.
+	 */
+	public static void writeModel(String modelFile, double[] w, int trainingDocs)
+			throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(modelFile));
+		writer.write("SVM-light Version V6.20\n");
+		writer.write("0 # kernel type\n");
+		writer.write("3 # kernel parameter -d\n");
+		writer.write("1 # kernel parameter -g\n");
+		writer.write("1 # kernel parameter -s\n");
+		writer.write("1 # kernel parameter -r\n");
+		writer.write("empty# kernel parameter -u\n");
+		writer.write((w.length + 1) + " # highest feature index\n");
+		writer.write(trainingDocs + " # number of training documents\n");
+		writer.write("2 # number of support vectors plus 1\n");
+		writer.write("0 # threshold b, each following line is a SV (starting with alpha*y)\n");
+		StringBuilder sv = new StringBuilder("1");
+		for (int k = 0; k < w.length; k++) {
+			sv.append(String.format(" %d:%.17g", k + 1, w[k]));
+		}
+		writer.write(sv.append(" #\n").toString());
+		writer.close();
+	}
+}
@@ -1,5 +1,6 @@
 public class RetrievalModelIndri extends RetrievalModel {
 	private double mu, lambda;
+	private double[] sdmWeights = { 0.8, 0.1, 0.1 };	// #SDM unigram, ordered, unordered
 	
 	public RetrievalModelIndri() {
 		
@@ -49,6 +50,36 @@ public class RetrievalModelIndri extends RetrievalModel {
 	  return true;
   }
 
+  /**
+   * Set the #SDM weights from a comma-separated list of three numbers.
+   * @param value The unigram, ordered window and unordered window weights.
+   * @return True if the weights are valid.
+   */
+  public boolean setSdmWeights (String value) {
+	  String[] parts = value.split(",");
+	  if (parts.length != 3) {
+		  System.err.println ("Error: Indri:sdmWeights needs three weights: " + value);
+		  return false;
+	  }
+	  double[] weights = new double[3];
+	  for (int i = 0; i < 3; i++) {
+		  weights[i] = Double.parseDouble(parts[i].trim());
+		  if (weights[i] < 0) {
+			  System.err.println ("Error: Indri:sdmWeights must not be negative: " + value);
+			  return false;
+		  }
+	  }
+	  sdmWeights = weights;
+	  return true;
+  }
+
+  /**
+   * @return The #SDM unigram, ordered window and unordered window weights.
+   */
+  public double[] getSdmWeights () {
+	  return sdmWeights;
+  }
+
   public double getParameter (String parameterName) {
 	  if (parameterName.equals("mu")) {
 		  return mu;
@@ -8,6 +8,16 @@ public class RetrievalModelLetor extends RetrievalModel {
 	public String featureDisable;
 	public String svmRankLearnPath, svmRankClassifyPath, svmRankModelFile;
 	public String testingFeatureVectorsFile, testingDocumentScores;
+	public int featureThreads = Runtime.getRuntime().availableProcessors();
+	// "java" trains with RankSvmTrainer instead of svmRankLearnPath
+	public String svmRankTrainer = "external";
+	public int svmRankIterations = 1000;
+	// "java" scores with LinearRanker instead of svmRankClassifyPath
+	public String svmRankClassifier = "external";
+	public String trainingFeatureMatrixFile, testingFeatureMatrixFile;
+	public boolean reuseFeatureMatrix = false;
+	// the number of first-stage documents that are reranked
+	public int rerankDepth = 100;
 
 	public RetrievalModelLetor() {
 
@@ -80,6 +90,22 @@ public class RetrievalModelLetor extends RetrievalModel {
 			testingFeatureVectorsFile = value;
 		} else if (parameterName.equals("testingDocumentScores")) {
 			testingDocumentScores = value;
+		} else if (parameterName.equals("featureThreads")) {
+			featureThreads = Integer.parseInt(value);
+		} else if (parameterName.equals("svmRankTrainer")) {
+			svmRankTrainer = value;
+		} else if (parameterName.equals("svmRankIterations")) {
+			svmRankIterations = Integer.parseInt(value);
+		} else if (parameterName.equals("svmRankClassifier")) {
+			svmRankClassifier = value;
+		} else if (parameterName.equals("trainingFeatureMatrixFile")) {
+			trainingFeatureMatrixFile = value;
+		} else if (parameterName.equals("testingFeatureMatrixFile")) {
+			testingFeatureMatrixFile = value;
+		} else if (parameterName.equals("reuseFeatureMatrix")) {
+			reuseFeatureMatrix = value.equalsIgnoreCase("true");
+		} else if (parameterName.equals("rerankDepth")) {
+			rerankDepth = Integer.parseInt(value);
 		} else {
 			System.err
 					.println("Error: Unknown parameter name for retrieval model "
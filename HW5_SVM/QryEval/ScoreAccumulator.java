@@ -0,0 +1,186 @@
+/**
+ *  This class implements the dense score accumulator used for
+ *  term-at-a-time (TAAT) evaluation of #SUM (BM25) and #OR (ranked
+ *  Boolean).  Instead of merging the argument score lists document by
+ *  document, each list in turn is added into an array indexed by
+ *  docid, and the touched documents are emitted in docid order.
+ *
+ *  The arrays are sized to the index and reused by every query.  A
+ *  generation stamp marks the documents touched by the current
+ *  evaluation, so nothing has to be cleared between evaluations.
+ *  Query operators evaluate their arguments before they accumulate,
+ *  so nested operators can share the single accumulator.
+ */
+
+import java.util.*;
+
+public class ScoreAccumulator {
+
+  //  evaluationMode parameter: "taat", "daat", or "auto" (default).
+
+  public static String mode = "auto";
+
+  //  In auto mode, TAAT is used when an operator has at least this
+  //  many arguments, or when its score lists hold more than
+  //  1/TAAT_DENSITY entries per document in the index.  With few
+  //  short lists the merge touches little memory and is cheaper.
+
+  private static final int TAAT_MIN_ARGS = 4;
+  private static final int TAAT_DENSITY = 8;
+
+  private static ScoreAccumulator shared = null;
+
+  private double[] scores;
+  private int[] stamps;
+  private int[] touched = new int[1024];
+  private int touchedCount = 0;
+  private int generation = 0;
+  private int minDocid, maxDocid;
+
+  private ScoreAccumulator(int maxDoc) {
+    this.scores = new double[maxDoc];
+    this.stamps = new int[maxDoc];
+  }
+
+  /**
+   *  Return the shared accumulator, cleared for a new evaluation.
+   *  @return The accumulator.
+   */
+  public static ScoreAccumulator get() {
+    int maxDoc = QryEval.READER.maxDoc();
+
+    if (shared == null || shared.scores.length < maxDoc)
+      shared = new ScoreAccumulator(maxDoc);
+
+    shared.reset();
+    return shared;
+  }
+
+  /**
+   *  Decide whether an operator should be evaluated term-at-a-time,
+   *  based on the number of arguments and the length of their score
+   *  lists.
+   *  @param ptrs The operator's ArgPtrs, after allocArgPtrs.
+   *  @return true to use TAAT, false to use the docid-ordered merge.
+   */
+  public static boolean useTaat(List<Qryop.ArgPtr> ptrs) {
+    if (mode.equalsIgnoreCase("taat"))
+      return true;
+    if (mode.equalsIgnoreCase("daat"))
+      return false;
+
+    if (ptrs.size() >= TAAT_MIN_ARGS)
+      return true;
+
+    long postings = 0;
+    for (Qryop.ArgPtr p : ptrs)
+      postings += p.scoreList.scores.size();
+
+    return postings * TAAT_DENSITY > QryEval.READER.maxDoc();
+  }
+
+  /**
+   *  Add score to the document's accumulated score.
+   *  @param docid An internal document id.
+   *  @param score The score to add.
+   */
+  public void add(int docid, double score) {
+    if (touch(docid))
+      this.scores[docid] = score;
+    else
+      this.scores[docid] += score;
+  }
+
+  /**
+   *  Keep the larger of score and the document's accumulated score.
+   *  @param docid An internal document id.
+   *  @param score The score to compare.
+   */
+  public void max(int docid, double score) {
+    if (touch(docid) || score > this.scores[docid])
+      this.scores[docid] = score;
+  }
+
+  /**
+   *  The number of documents touched in this evaluation.
+   *  @return The number of touched documents.
+   */
+  public int touchedCount() {
+    return this.touchedCount;
+  }
+
+  /**
+   *  The i'th document touched in this evaluation, in touch order.
+   *  @param i An index less than touchedCount().
+   *  @return An internal document id.
+   */
+  public int touchedDocid(int i) {
+    return this.touched[i];
+  }
+
+  /**
+   *  The accumulated score of a touched document.
+   *  @param docid An internal document id.
+   *  @return The document's accumulated score.
+   */
+  public double getScore(int docid) {
+    return this.scores[docid];
+  }
+
+  /**
+   *  Return the touched documents and their scores in docid order.
+   *  @return A score list.
+   */
+  public ScoreList toScoreList() {
+    ScoreList result = new ScoreList();
+    int n = this.touchedCount;
+
+    if (n == 0)
+      return result;
+
+    //  Sort the touched docids unless scanning the stamps over the
+    //  touched docid range is cheaper.
+
+    int range = this.maxDocid - this.minDocid + 1;
+
+    if ((long) n * (32 - Integer.numberOfLeadingZeros(n)) < range) {
+      Arrays.sort(this.touched, 0, n);
+      for (int i = 0; i < n; i++)
+        result.add(this.touched[i], this.scores[this.touched[i]]);
+    } else {
+      for (int d = this.minDocid; d <= this.maxDocid; d++)
+        if (this.stamps[d] == this.generation)
+          result.add(d, this.scores[d]);
+    }
+
+    return result;
+  }
+
+  private void reset() {
+    this.touchedCount = 0;
+    this.minDocid = Integer.MAX_VALUE;
+    this.maxDocid = -1;
+
+    if (++this.generation == 0) {
+      Arrays.fill(this.stamps, 0);
+      this.generation = 1;
+    }
+  }
+
+  /**
+   *  Mark a document as touched.
+   *  @return true if this is the first touch in this evaluation.
+   */
+  private boolean touch(int docid) {
+    if (this.stamps[docid] == this.generation)
+      return false;
+
+    this.stamps[docid] = this.generation;
+    if (this.touchedCount == this.touched.length)
+      this.touched = Arrays.copyOf(this.touched, this.touchedCount * 2);
+    this.touched[this.touchedCount++] = docid;
+    this.minDocid = Math.min(this.minDocid, docid);
+    this.maxDocid = Math.max(this.maxDocid, docid);
+    return true;
+  }
+}
@@ -1,22 +1,26 @@
 /**
  *  The TermVector class provides an Indri DocVector-style interface
  *  for the Lucene termvector.  There are three main data structurs:
- *    stems:      The field's vocabulary.  The 0'th entry is an empty string.
- *                It indicates a stopword.
+ *    stems:      The field's vocabulary, in term order.  The 0'th entry
+ *                is empty.  It indicates a stopword.
  *    stemsFreq:  The frequency (tf) of each entry in stems.
  *    positions:  The index of the stem that occurred at this position. 
  *
+ *  The stems are kept as BytesRefs and found by binary search, so
+ *  looking up a stem allocates nothing.  The positions are only
+ *  decoded on the first call of positionsLength or stemAt.
+ *
  *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
  */
 
 import java.io.*;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 import org.apache.lucene.index.DocsAndPositionsEnum;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
 
 public class TermVector {
 
@@ -24,11 +28,10 @@ public class TermVector {
 	 * Class variables.
 	 */
 	Terms luceneTerms;
+	String fieldName;
 	int[] positions;
-	String[] stems;
+	BytesRef[] stems;
 	int[] stemsFreq;
-	Term[] terms;
-	Map<String, Integer> indexMap;
 
 	/**
 	 * Constructor. Create a TermVector for a field in a document.
@@ -36,66 +39,91 @@ public class TermVector {
 	 * @return {@link TermVector}
 	 */
 	public TermVector(int docId, String fieldName) throws IOException {
+		this(fetch(docId, fieldName), fieldName);
+	}
 
-		// Fetch the term vector.
+	/**
+	 * Read the term vector of a field in a document, if it has one.
+	 * 
+	 * @return The {@link TermVector}, or null if the document has no term
+	 *         vector for the field.
+	 */
+	public static TermVector read(int docId, String fieldName)
+			throws IOException {
+		Terms luceneTerms = fetch(docId, fieldName);
+		return (luceneTerms == null) ? null : new TermVector(luceneTerms,
+				fieldName);
+	}
 
-		this.luceneTerms = QryEval.READER.getTermVector(docId, fieldName);
+	private static Terms fetch(int docId, String fieldName) throws IOException {
+		return QryEval.READER.getTermVector(docId, fieldName);
+	}
+
+	/**
+	 * Constructor. Create a TermVector from a Lucene term vector.
+	 * 
+	 * @return {@link TermVector}
+	 */
+	private TermVector(Terms luceneTerms, String fieldName) throws IOException {
+
+		this.luceneTerms = luceneTerms;
+		this.fieldName = fieldName;
 
 		// Allocate space for stems. The 0'th stem indicates a stopword.
 
 		int stemsLength = (int) this.luceneTerms.size();
-		stems = new String[stemsLength + 1];
-		terms = new Term[stemsLength + 1];
+		stems = new BytesRef[stemsLength + 1];
 		stemsFreq = new int[stemsLength + 1];
-		indexMap = new HashMap<String, Integer>();
+		stems[0] = new BytesRef();
 
 		// Iterate through the terms, filling in the stem and frequency
-		// information, and finding the position of the last term. The
-		// 0'th term indicates a stopword, so this loop starts at i=1.
+		// information. The 0'th term indicates a stopword, so this loop
+		// starts at i=1. Term vectors enumerate their terms in sorted
+		// order, which getIndex relies on.
 
 		TermsEnum ithTerm = this.luceneTerms.iterator(null);
 
-		int positionsLength = 0;
 		for (int i = 1; ithTerm.next() != null; i++) {
-			stems[i] = ithTerm.term().utf8ToString();
-			terms[i] = new Term(fieldName, ithTerm.term().utf8ToString());
+			stems[i] = BytesRef.deepCopyOf(ithTerm.term());
 			stemsFreq[i] = (int) ithTerm.totalTermFreq();
-			indexMap.put(stems[i], i);
-			
-			// Find the position of the last (indexed) term in the
-			// document, so that the positions array can be created and
-			// populated later. The last position for each term is the
-			// largest, so ignore the positions before it.
-
-			DocsAndPositionsEnum ithPositions = ithTerm.docsAndPositions(null,
-					null);
-
-			ithPositions.nextDoc(); /* Initialize iPositions */
-
-			for (int j = 0; j < ithPositions.freq() - 1; j++)
-				ithPositions.nextPosition();
-
-			positionsLength = Math.max(positionsLength,
-					ithPositions.nextPosition());
 		}
+	}
 
-		// Create and fill the positions array. Note that the stems array
-		// uses stem 0 to indicate a stopword, so "real" stems have
-		// indexs 1 through length+1.
-
-		positions = new int[positionsLength + 1];
+	/**
+	 * Create and fill the positions array. Note that the stems array uses
+	 * stem 0 to indicate a stopword, so "real" stems have indexs 1 through
+	 * length+1.
+	 */
+	private void decodePositions() throws IOException {
+		int[] positions = new int[64];
+		int positionsLength = 0;
 
-		ithTerm = this.luceneTerms.iterator(null);
+		TermsEnum ithTerm = this.luceneTerms.iterator(null);
+		DocsAndPositionsEnum ithPositions = null;
 
-		for (int i = 0; ithTerm.next() != null; i++) {
-			DocsAndPositionsEnum ithPositions = ithTerm.docsAndPositions(null,
-					null);
+		for (int i = 1; ithTerm.next() != null; i++) {
+			ithPositions = ithTerm.docsAndPositions(null, ithPositions);
 
 			ithPositions.nextDoc(); /* Initialize iPositions */
 
-			for (int j = 0; j < ithPositions.freq(); j++)
-				positions[ithPositions.nextPosition()] = i + 1;
+			for (int j = 0; j < ithPositions.freq(); j++) {
+				int position = ithPositions.nextPosition();
+				if (position >= positions.length)
+					positions = Arrays.copyOf(positions,
+							Math.max(positions.length * 2, position + 1));
+				positions[position] = i;
+				positionsLength = Math.max(positionsLength, position + 1);
+			}
 		}
+
+		this.positions = Arrays.copyOf(positions,
+				Math.max(positionsLength, 1));
+	}
+
+	private int[] getPositions() throws IOException {
+		if (this.positions == null)
+			decodePositions();
+		return this.positions;
 	}
 
 	/**
@@ -104,8 +132,8 @@ public class TermVector {
 	 * 
 	 * @return The number of positionsin this field (the field length).
 	 */
-	public int positionsLength() {
-		return this.positions.length;
+	public int positionsLength() throws IOException {
+		return getPositions().length;
 	}
 
 	/**
@@ -116,7 +144,8 @@ public class TermVector {
 	 *            A position in the document.
 	 * @return Index of the stem.
 	 */
-	public int stemAt(int i) {
+	public int stemAt(int i) throws IOException {
+		int[] positions = getPositions();
 		if (i < positions.length)
 			return positions[i];
 		else
@@ -148,7 +177,7 @@ public class TermVector {
 	 */
 	public String stemString(int i) {
 		if (i < stems.length)
-			return stems[i];
+			return stems[i].utf8ToString();
 		else
 			return null;
 	}
@@ -171,7 +200,7 @@ public class TermVector {
 	 * @throws IOException.
 	 */
 	public long totalStemFreq(int i) throws IOException {
-		return QryEval.READER.totalTermFreq(terms[i]);
+		return QryEval.READER.totalTermFreq(new Term(fieldName, stems[i]));
 	}
 
 	/**
@@ -183,10 +212,43 @@ public class TermVector {
 	 * @throws IOException.
 	 */
 	public int stemDf(int i) throws IOException {
-		return QryEval.READER.docFreq(terms[i]);
+		return QryEval.READER.docFreq(new Term(fieldName, stems[i]));
 	}
 
+	/**
+	 * Returns the index of a stem, or -1 if the stem is not in this field.
+	 * 
+	 * @param stem
+	 *            The stem string.
+	 * @return Index of the stem.
+	 */
 	public int getIndex(String stem) {
-		return (indexMap.containsKey(stem) ? indexMap.get(stem) : -1);
+		return getIndex(new BytesRef(stem));
+	}
+
+	/**
+	 * Returns the index of a stem, or -1 if the stem is not in this field.
+	 * The lookup is a binary search that allocates nothing.
+	 * 
+	 * @param stem
+	 *            The stem, as index bytes.
+	 * @return Index of the stem.
+	 */
+	public int getIndex(BytesRef stem) {
+		int low = 1;
+		int high = stems.length - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = stems[mid].compareTo(stem);
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+
+		return -1;
 	}
 }